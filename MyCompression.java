@@ -5,10 +5,12 @@
 // imports
 import java.awt.BorderLayout;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 import javax.swing.*;
 
 // class to implement image compression algorithm via k-means clustering for gray scale and color images
@@ -21,17 +23,42 @@ public class MyCompression {
     private static final int MAX_ITERS = 50;
     // setting a strict threshold for sum of squared codeword changes
     private static final double CONVERGENCE_EPS = 0.5;
+    // stopping once fewer than this fraction of vectors change cluster in an iteration
+    private static final double MOVED_FRACTION_EPS = 0.001;
     private static final boolean VERBOSE = false;
 
+    // a restart is dropped once it is this much worse than the best finished restart
+    private static final double RESTART_ABORT_RATIO = 1.10;
+    // ... but only after this many iterations, early distortion says little
+    private static final int RESTART_MIN_ITERS = 5;
+    // largest byte[] most JVMs will allocate
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
     public static void main(String[] args) 
     {
-        if (args.length != 3) 
+        if (args.length >= 1 && args[0].equals("bench")) 
+        {
+            runBenchmark(args);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("view")) 
+        {
+            runViewer(args);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("train-sharded")) 
+        {
+            runShardedTraining(args);
+            return;
+        }
+        if (args.length == 3 && args[0].equals("shard-worker")) 
+        {
+            runShardWorker(args);
+            return;
+        }
+        if (args.length < 3) 
         {
-            System.err.println("Usage: java MyCompressionUnified <filename> <M> <N>");
-            System.err.println("  <filename>: .raw (grayscale) or .rgb (color), 352x288");
-            System.err.println("  <M>: either 2, or a perfect square (4,9,16,...)");
-            System.err.println("  <N>: # of codewords (power of 2).");
-            
+            printUsage();
             return;
         }
 
@@ -39,6 +66,68 @@ public class MyCompression {
         int M = Integer.parseInt(args[1]);
         int N = Integer.parseInt(args[2]);
 
+        // optional training flags
+        int restarts = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean prune = true;
+        long seed = new Random().nextLong();
+        long deadlineMs = 0;
+        String outPath = null;
+        int tilePx = DEFAULT_TILE_PX;
+        boolean classified = false;
+        boolean compare = false;
+
+        for (int a = 3; a < args.length; a++) 
+        {
+            if (args[a].equals("--restarts") && a + 1 < args.length) 
+            {
+                restarts = Integer.parseInt(args[++a]);
+            } 
+            else if (args[a].equals("--threads") && a + 1 < args.length) 
+            {
+                threads = Integer.parseInt(args[++a]);
+            } 
+            else if (args[a].equals("--no-prune")) 
+            {
+                prune = false;
+            } 
+            else if (args[a].equals("--seed") && a + 1 < args.length) 
+            {
+                seed = Long.parseLong(args[++a]);
+            } 
+            else if (args[a].equals("--deadline-ms") && a + 1 < args.length) 
+            {
+                deadlineMs = Long.parseLong(args[++a]);
+            } 
+            else if (args[a].equals("--out") && a + 1 < args.length) 
+            {
+                outPath = args[++a];
+            } 
+            else if (args[a].equals("--tile") && a + 1 < args.length) 
+            {
+                tilePx = Integer.parseInt(args[++a]);
+            } 
+            else if (args[a].equals("--classified")) 
+            {
+                classified = true;
+            } 
+            else if (args[a].equals("--compare")) 
+            {
+                compare = true;
+            } 
+            else 
+            {
+                System.err.println("ERROR: unknown option " + args[a]);
+                printUsage();
+                return;
+            }
+        }
+        if (restarts < 1 || threads < 1) 
+        {
+            System.err.println("ERROR: --restarts and --threads must be at least 1");
+            return;
+        }
+
         // 2 different models with whem, M=2: 2-pixel approach AND when M=perfect square: NxN block
         boolean isTwoPixelMode = (M == 2);
         int blockSize = (int)Math.round(Math.sqrt(M));
@@ -49,6 +138,16 @@ public class MyCompression {
             System.err.println("ERROR: M must be 2 OR a perfect square (4,9,16,...)");
             return;
         }
+        if (classified && (isTwoPixelMode || outPath != null)) 
+        {
+            System.err.println("ERROR: --classified needs block mode (M = 4, 9, 16, ...) and cannot be combined with --out");
+            return;
+        }
+        if (classified && N < 3) 
+        {
+            System.err.println("ERROR: --classified needs N >= 3, one codeword for each of flat, edge and texture");
+            return;
+        }
 
         // step 1: check if grayscale OR color by file size
         File f = new File(filename);
@@ -82,22 +181,48 @@ public class MyCompression {
                 return;
             }
 
-            // buildng the vectors
-            List<int[]> vectors;
+            if (classified) 
+            {
+                // flat blocks as their mean, the rest through per-class codebooks
+                List<int[]> blocks = buildVectorsGrayBlock(imageGray, blockSize, WIDTH, HEIGHT);
+                ClassifiedResult cres = runClassified(blocks, blockSize, 1, N, restarts, seed, prune, threads,
+                        deadlineMs, compare);
+
+                int[][] recGray = paintGrayBlocks(imageGray, cres.reconstructed, blockSize, WIDTH, HEIGHT);
+                BufferedImage combined = makeSideBySideGray(imageGray, recGray, WIDTH, HEIGHT);
+                displayImage(combined, "Original vs. Classified (Grayscale, M=" + M + ")");
+                return;
+            }
+
+            // buildng the vectors, identical ones collapsed into (vector, count)
+            WeightedVectors vectors;
 
             if (isTwoPixelMode) 
             {
                 // here when M=2
-                vectors = buildVectorsGray2Pixel(imageGray, WIDTH, HEIGHT);
+                vectors = buildUniqueGray2Pixel(imageGray, WIDTH, HEIGHT);
             } 
             else 
             {
                 // here when M=perfect square
-                vectors = buildVectorsGrayBlock(imageGray, blockSize, WIDTH, HEIGHT);
+                vectors = dedupeVectors(buildVectorsGrayBlock(imageGray, blockSize, WIDTH, HEIGHT));
             }
 
             // the k-means codebook
-            List<int[]> codebook = buildCodebook(vectors, N);
+            TrainingBudget budget = new TrainingBudget(deadlineMs);
+            watchForCancel(budget);
+            TrainingResult trained = trainWithRestarts(vectors, N, restarts, seed, prune, threads, budget);
+            List<int[]> codebook = trained.codebook;
+
+            if (deadlineMs > 0 || trained.timedOut) 
+            {
+                printTraining(trained);
+            }
+
+            if (outPath != null && !writeContainer(outPath, imageGray, null, M, codebook, tilePx)) 
+            {
+                return;
+            }
 
             // reconstructing
             int[][] recGray;
@@ -127,22 +252,47 @@ public class MyCompression {
                 return;
             }
 
-            // building the vectors
-            List<int[]> vectors;
+            if (classified) 
+            {
+                List<int[]> blocks = buildVectorsColorBlock(imageColor, blockSize, WIDTH, HEIGHT);
+                ClassifiedResult cres = runClassified(blocks, blockSize, 3, N, restarts, seed, prune, threads,
+                        deadlineMs, compare);
+
+                int[][][] recColor = paintColorBlocks(imageColor, cres.reconstructed, blockSize, WIDTH, HEIGHT);
+                BufferedImage combined = makeSideBySideColor(imageColor, recColor, WIDTH, HEIGHT);
+                displayImage(combined, "Original vs. Classified (Color, M=" + M + ")");
+                return;
+            }
+
+            // building the vectors, identical ones collapsed into (vector, count)
+            WeightedVectors vectors;
 
             if (isTwoPixelMode) 
             {
                 // here when we have M=2 --> dimension=6
-                vectors = buildVectorsColor2Pixel(imageColor, WIDTH, HEIGHT);
+                vectors = dedupeVectors(buildVectorsColor2Pixel(imageColor, WIDTH, HEIGHT));
             } 
             else 
             {
                 // here when we have M=perfect square --> block-based
-                vectors = buildVectorsColorBlock(imageColor, blockSize, WIDTH, HEIGHT);
+                vectors = dedupeVectors(buildVectorsColorBlock(imageColor, blockSize, WIDTH, HEIGHT));
             }
 
             // codebook
-            List<int[]> codebook = buildCodebook(vectors, N);
+            TrainingBudget budget = new TrainingBudget(deadlineMs);
+            watchForCancel(budget);
+            TrainingResult trained = trainWithRestarts(vectors, N, restarts, seed, prune, threads, budget);
+            List<int[]> codebook = trained.codebook;
+
+            if (deadlineMs > 0 || trained.timedOut) 
+            {
+                printTraining(trained);
+            }
+
+            if (outPath != null && !writeContainer(outPath, null, imageColor, M, codebook, tilePx)) 
+            {
+                return;
+            }
 
             // reconstruct
             int[][][] recColor;
@@ -161,26 +311,82 @@ public class MyCompression {
         }
     }
 
+    private static void printUsage() 
+    {
+        System.err.println("Usage: java MyCompression <filename> <M> <N> [--restarts R] [--threads T] [--no-prune] [--seed S]");
+        System.err.println("                          [--deadline-ms T] [--out F] [--tile P] [--classified [--compare]]");
+        System.err.println("  <filename>: .raw (grayscale) or .rgb (color), 352x288");
+        System.err.println("  <M>: either 2, or a perfect square (4,9,16,...)");
+        System.err.println("  <N>: # of codewords (power of 2).");
+        System.err.println("  --restarts R: train R independently seeded codebooks in parallel, keep the best (default 1)");
+        System.err.println("  --threads T: worker threads for training (default: all cores)");
+        System.err.println("  --no-prune: let every restart run to convergence instead of dropping clearly losing ones");
+        System.err.println("  --seed S: base seed for k-means++ (random by default)");
+        System.err.println("  --deadline-ms T: stop training after T ms and use the best codebook found so far");
+        System.err.println("  (a \"cancel\" line on stdin during training stops it the same way)");
+        System.err.println("  --out F: also write the compressed image as a tiled container (.vqt)");
+        System.err.println("  --tile P: tile edge in pixels for --out (default " + DEFAULT_TILE_PX + ")");
+        System.err.println("  --classified: send near-uniform blocks as their mean, train flat/edge/texture codebooks for the rest");
+        System.err.println("  --compare: with --classified, also run the single-codebook path and print the speed-up and rates");
+        System.err.println("   or: java MyCompression view <file.vqt> [x y w h] [--cache T]");
+        System.err.println("   or: java MyCompression train-sharded --workers W --M M --N N [--seed S] [--local]");
+        System.err.println("                                        [--out codebook.txt] <files...>");
+        System.err.println("   or: java MyCompression bench [--sizes 0.1,1,10,100] [--threads 1,2,4] [--M 4] [--N 64]");
+        System.err.println("                                [--patterns gradient,texture,noise] [--kinds gray,color] [--out results.csv]");
+    }
+
+    private static boolean writeContainer(String outPath, int[][] gray, int[][][] rgb, int M,
+                                          List<int[]> codebook, int tilePx) 
+    {
+        try 
+        {
+            File out = new File(outPath);
+            int[] indices = encodeGrid(gray, rgb, WIDTH, HEIGHT, M, codebook, null, 1);
+            writeTiledContainer(out, WIDTH, HEIGHT, rgb != null, M, codebook, indices, tilePx);
+            System.out.println("Wrote " + outPath + " (" + out.length() + " bytes)");
+
+            return true;
+        } 
+        catch (IOException e) 
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static void printTraining(TrainingResult trained) 
+    {
+        System.out.println("Training: " + trained.iterations + " iterations, distortion=" + trained.distortion
+                + (trained.timedOut ? " (stopped at deadline or cancel, best so far)" : " (converged)"));
+    }
+
     // READING THE IMAGES
     private static int[][] readGrayscale(String filename) 
     {
-        int[][] img = new int[HEIGHT][WIDTH];
+        return readGrayscale(filename, WIDTH, HEIGHT);
+    }
 
-        try (FileInputStream fis = new FileInputStream(filename)) 
+    private static int[][] readGrayscale(String filename, int w, int h) 
+    {
+        if ((long) w * h > MAX_ARRAY_LENGTH) 
         {
-            byte[] buffer = new byte[WIDTH * HEIGHT];
-            int bytesRead = fis.read(buffer);
+            new IOException(w + "x" + h + " is too large to read into one buffer").printStackTrace();
+            return null;
+        }
 
-            if (bytesRead < WIDTH*HEIGHT) 
-            {
-                return null;
-            }
+        int[][] img = new int[h][w];
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) 
+        {
+            // readFully, a single read() may return short on large files
+            byte[] buffer = new byte[w * h];
+            in.readFully(buffer);
 
             int idx = 0;
 
-            for (int y = 0; y < HEIGHT; y++) 
+            for (int y = 0; y < h; y++) 
             {
-                for (int x = 0; x < WIDTH; x++) 
+                for (int x = 0; x < w; x++) 
                 {
                     img[y][x] = (buffer[idx] & 0xFF);
                     idx++;
@@ -198,31 +404,35 @@ public class MyCompression {
 
     private static int[][][] readColor(String filename) 
     {
-        int[][][] img = new int[HEIGHT][WIDTH][3];
+        return readColor(filename, WIDTH, HEIGHT);
+    }
 
-        try (FileInputStream fis = new FileInputStream(filename)) 
+    private static int[][][] readColor(String filename, int w, int h) 
+    {
+        if ((long) w * h > MAX_ARRAY_LENGTH) 
         {
-            byte[] buffer = new byte[WIDTH * HEIGHT * 3];
-            int bytesRead = fis.read(buffer);
+            new IOException(w + "x" + h + " is too large to read into one buffer").printStackTrace();
+            return null;
+        }
 
-            if (bytesRead < WIDTH*HEIGHT*3) 
-            {
-                return null;
-            }
+        int[][][] img = new int[h][w][3];
 
-            int frameSize = WIDTH * HEIGHT;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) 
+        {
+            // the file is planar (all R, then all G, then all B), one plane at a time keeps
+            // the buffer at w*h bytes instead of overflowing w*h*3 on very large images
+            byte[] buffer = new byte[w * h];
 
-            for (int y = 0; y < HEIGHT; y++) 
+            for (int c = 0; c < 3; c++) 
             {
-                for (int x = 0; x < WIDTH; x++) 
+                in.readFully(buffer);
+
+                for (int y = 0; y < h; y++) 
                 {
-                    int idx = y*WIDTH + x;
-                    int r = buffer[idx] & 0xFF;
-                    int g = buffer[idx + frameSize] & 0xFF;
-                    int b = buffer[idx + 2*frameSize] & 0xFF;
-                    img[y][x][0] = r;
-                    img[y][x][1] = g;
-                    img[y][x][2] = b;
+                    for (int x = 0; x < w; x++) 
+                    {
+                        img[y][x][c] = buffer[y*w + x] & 0xFF;
+                    }
                 }
             }
         } 
@@ -337,6 +547,105 @@ public class MyCompression {
         return vectors;
     }
 
+    // COLLAPSING IDENTICAL VECTORS
+    // unique vectors in order of first occurrence, with how often each one occurs
+    private static final class WeightedVectors 
+    {
+        final List<int[]> vectors;
+        final int[] weights;
+
+        WeightedVectors(List<int[]> vectors, int[] weights) 
+        {
+            this.vectors = vectors;
+            this.weights = weights;
+        }
+    }
+
+    // int[] has identity equals, so wrap it for hashing
+    private static final class VectorKey 
+    {
+        final int[] v;
+        final int hash;
+
+        VectorKey(int[] v) 
+        {
+            this.v = v;
+            this.hash = Arrays.hashCode(v);
+        }
+
+        @Override
+        public int hashCode() 
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) 
+        {
+            return (o instanceof VectorKey) && Arrays.equals(v, ((VectorKey) o).v);
+        }
+    }
+
+    // hash based, works for any dimension (blocks, color pairs)
+    private static WeightedVectors dedupeVectors(List<int[]> allVectors) 
+    {
+        Map<VectorKey, Integer> indexOf = new HashMap<>();
+        List<int[]> unique = new ArrayList<>();
+        int[] counts = new int[allVectors.size()];
+
+        for (int[] v : allVectors) 
+        {
+            VectorKey key = new VectorKey(v);
+            Integer idx = indexOf.get(key);
+
+            if (idx == null) 
+            {
+                idx = unique.size();
+                indexOf.put(key, idx);
+                unique.add(v);
+            }
+
+            counts[idx]++;
+        }
+
+        return new WeightedVectors(unique, Arrays.copyOf(counts, unique.size()));
+    }
+
+    // gray pairs only have 256*256 possible values, so a direct histogram beats hashing
+    private static WeightedVectors buildUniqueGray2Pixel(int[][] image, int w, int h) 
+    {
+        int[] histogram = new int[256 * 256];
+        int[] firstSeen = new int[256 * 256];
+        int numUnique = 0;
+
+        for (int y = 0; y < h; y++) 
+        {
+            for (int x = 0; x < w-1; x += 2) 
+            {
+                int key = (image[y][x] << 8) | image[y][x+1];
+
+                if (histogram[key] == 0) 
+                {
+                    firstSeen[numUnique++] = key;
+                }
+
+                histogram[key]++;
+            }
+        }
+
+        List<int[]> unique = new ArrayList<>(numUnique);
+        int[] weights = new int[numUnique];
+
+        for (int i = 0; i < numUnique; i++) 
+        {
+            int key = firstSeen[i];
+            unique.add(new int[]{ key >> 8, key & 0xFF });
+            weights[i] = histogram[key];
+        }
+
+        return new WeightedVectors(unique, weights);
+    }
+
     // RECONSTRUCTING FOR M=2
     private static int[][] reconstructGray2Pixel(int[][] orig, List<int[]> codebook, int w, int h) 
     {
@@ -521,239 +830,3334 @@ public class MyCompression {
     }
 
     // KMEANS + STRICT CONVERGENCE + EMPTY CLUSTER REINIT
-    private static List<int[]> buildCodebook(List<int[]> allVectors, int N) 
+    // what one training run produced, distortion = weighted sum of squared errors of the codebook
+    // (NaN if the budget ran out before a single full assignment pass)
+    private static final class TrainingResult 
     {
-        if (allVectors.isEmpty()) 
+        final List<int[]> codebook;
+        final double distortion;
+        // Lloyd iterations (update + full reassignment) behind the returned codebook
+        final int iterations;
+        // true when the run was dropped early for losing against another restart
+        final boolean pruned;
+        // true when the deadline passed or the budget was cancelled before convergence
+        final boolean timedOut;
+
+        TrainingResult(List<int[]> codebook, double distortion, int iterations, boolean pruned, boolean timedOut) 
         {
-            System.err.println("No vectors found, returning empty codebook.");
-            return Collections.emptyList();
+            this.codebook = codebook;
+            this.distortion = distortion;
+            this.iterations = iterations;
+            this.pruned = pruned;
+            this.timedOut = timedOut;
         }
+    }
 
-        // step 1 - kmeans++ initializing
-        List<int[]> codebook = kmeansPlusPlusInit(allVectors, N);
-
-        // step 2 - iterating
-        for (int iter = 0; iter < MAX_ITERS; iter++) {
-            // assigning
-            List<List<int[]>> clusters = new ArrayList<>();
+    // best finished distortion across concurrently running restarts
+    private static final class SharedBest 
+    {
+        private volatile double distortion = Double.MAX_VALUE;
 
-            for (int i = 0; i < N; i++) 
-            {
-                clusters.add(new ArrayList<>());
-            }
-            for (int[] v : allVectors) 
+        synchronized void offer(double d) 
+        {
+            if (d < distortion) 
             {
-                int bestIndex = findNearest(v, codebook);
-                clusters.get(bestIndex).add(v);
+                distortion = d;
             }
+        }
 
-            // updating
-            double sqChange = updateCodewords(codebook, clusters);
+        double get() 
+        {
+            return distortion;
+        }
+    }
 
-            if (VERBOSE) 
+    // time limit for training, cancel() may be called from any thread (watchForCancel wires it to stdin)
+    // workers poll expired() between small batches of vectors, so a stop lands mid-iteration too
+    private static final class TrainingBudget 
+    {
+        private final long deadlineNanos;
+        private final boolean hasDeadline;
+        // a slice also stops when the budget it was cut from does
+        private final TrainingBudget parent;
+        private volatile boolean cancelled;
+
+        // timeoutMs <= 0 means no deadline, only cancel() stops it
+        TrainingBudget(long timeoutMs) 
+        {
+            this(timeoutMs, null);
+        }
+
+        private TrainingBudget(long timeoutMs, TrainingBudget parent) 
+        {
+            this.hasDeadline = timeoutMs > 0;
+            this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+            this.parent = parent;
+        }
+
+        // an equal share of what is left for one of `parts` trainings run one after another
+        TrainingBudget slice(int parts) 
+        {
+            if (!hasDeadline) 
             {
-                System.out.println("Iter=" + iter + " sqChange=" + sqChange);
+                return new TrainingBudget(0, this);
             }
-            if (sqChange < CONVERGENCE_EPS) 
-            {
-                if (VERBOSE) 
-                {
-                    System.out.println("Converged early, sqChange=" + sqChange);
-                }
 
-                break;
-            }
+            long leftMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+
+            return new TrainingBudget(Math.max(1, leftMs / Math.max(1, parts)), this);
         }
 
-        return codebook;
+        void cancel() 
+        {
+            cancelled = true;
+        }
+
+        boolean expired() 
+        {
+            return cancelled || (hasDeadline && System.nanoTime() - deadlineNanos >= 0)
+                    || (parent != null && parent.expired());
+        }
     }
 
-    private static List<int[]> kmeansPlusPlusInit(List<int[]> allVectors, int N) 
-    {
-        Random rand = new Random();
-        List<int[]> codebook = new ArrayList<>(N);
+    // the budget being trained against right now, a "cancel" line on stdin cancels it
+    private static volatile TrainingBudget watchedBudget;
+    private static boolean cancelReaderStarted;
 
-        // picking the first codeword randomly
-        int firstIdx = rand.nextInt(allVectors.size());
-        codebook.add(allVectors.get(firstIdx).clone());
+    // one daemon reader for the whole run, later calls only switch the budget it cancels;
+    // it never keeps the JVM alive and simply ends on EOF when stdin is not interactive
+    private static synchronized void watchForCancel(TrainingBudget budget) 
+    {
+        watchedBudget = budget;
 
-        while (codebook.size() < N) 
+        if (cancelReaderStarted) 
         {
-            double[] distSq = new double[allVectors.size()];
-            double sumDist = 0;
+            return;
+        }
 
-            for (int i = 0; i < allVectors.size(); i++) 
+        cancelReaderStarted = true;
+        Thread reader = new Thread(() -> {
+            try 
             {
-                int[] vec = allVectors.get(i);
-                double minDist = Double.MAX_VALUE;
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+                String line;
 
-                for (int[] cw : codebook) 
+                while ((line = in.readLine()) != null) 
                 {
-                    double dist = squaredDistance(vec, cw);
+                    TrainingBudget current = watchedBudget;
 
-                    if (dist < minDist) 
+                    if (line.trim().equals("cancel") && current != null) 
                     {
-                        minDist = dist;
+                        current.cancel();
+                        System.err.println("Training cancelled, keeping the best codebook so far");
                     }
                 }
-
-                distSq[i] = minDist;
-                sumDist += minDist;
-            }
-            if (sumDist == 0.0) 
+            } 
+            catch (IOException e) 
             {
-                while (codebook.size() < N) 
-                {
-                    codebook.add(allVectors.get(0).clone());
-                }
-
-                break;
+                // stdin gone, nothing left to watch
             }
-            double r = rand.nextDouble() * sumDist;
-            double cumsum = 0.0;
+        }, "cancel-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
 
-            for (int i = 0; i < allVectors.size(); i++) 
-            {
-                cumsum += distSq[i];
+    // runs R independently seeded trainings on separate cores and keeps the lowest distortion one
+    // restart i uses seed+i, so with prune off a given (seed, R) always gives the same codebook; with prune on,
+    // which restarts get dropped depends on which ones happen to finish first, so the result can vary run to run
+    // a single run instead spreads its assignment step over `threads` workers
+    // every restart shares the one budget, so the whole call respects the deadline
+    private static TrainingResult trainWithRestarts(WeightedVectors unique, int N, int restarts, long seed,
+                                                    boolean prune, int threads, TrainingBudget budget) 
+    {
+        if (restarts == 1) 
+        {
+            ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
 
-                if (cumsum >= r) 
+            try 
+            {
+                return trainCodebook(unique.vectors, unique.weights, N, new Random(seed), null, pool, threads, budget);
+            } 
+            finally 
+            {
+                if (pool != null) 
                 {
-                    codebook.add(allVectors.get(i).clone());
-                    break;
+                    pool.shutdownNow();
                 }
             }
         }
-        return codebook;
-    }
-
-    private static double updateCodewords(List<int[]> codebook, List<List<int[]>> clusters) 
-    {
-        double totalChange = 0.0;
-        int d = codebook.get(0).length;
 
-        int[][] newCentroids = new int[codebook.size()][d];
-        boolean[] isEmpty = new boolean[codebook.size()];
+        final SharedBest best = prune ? new SharedBest() : null;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(restarts, threads));
+        List<Future<TrainingResult>> futures = new ArrayList<>();
 
-        // computing the normal averages
-        for (int i = 0; i < codebook.size(); i++) 
+        try 
         {
-            List<int[]> cluster = clusters.get(i);
-
-            if (cluster.isEmpty()) 
+            for (int r = 0; r < restarts; r++) 
             {
-                isEmpty[i] = true;
-                continue;
+                final long restartSeed = seed + r;
+                futures.add(pool.submit(() -> trainCodebook(unique.vectors, unique.weights, N,
+                        new Random(restartSeed), best, null, 1, budget)));
             }
 
-            long[] sums = new long[d];
+            TrainingResult winner = null;
+            int winnerIdx = -1;
 
-            for (int[] v : cluster) 
+            for (int r = 0; r < restarts; r++) 
             {
-                for (int k = 0; k < d; k++) 
+                TrainingResult res = futures.get(r).get();
+
+                if (VERBOSE) 
+                {
+                    System.out.println("Restart=" + r + " distortion=" + res.distortion + " iters=" + res.iterations
+                            + (res.pruned ? " (pruned)" : "") + (res.timedOut ? " (out of time)" : ""));
+                }
+                if (res.pruned) 
+                {
+                    continue;
+                }
+                // a restart cut off before its first full pass has no distortion, take it only if nothing else
+                if (winner == null || (Double.isNaN(winner.distortion) && !Double.isNaN(res.distortion))
+                        || res.distortion < winner.distortion) 
                 {
-                    sums[k] += v[k];
+                    winner = res;
+                    winnerIdx = r;
                 }
             }
 
-            for (int k = 0; k < d; k++) 
-            {
-                newCentroids[i][k] = (int)(sums[k] / cluster.size());
-            }
-        }
+            System.out.println("Restarts: kept #" + winnerIdx + " of " + restarts
+                    + ", distortion=" + winner.distortion);
 
-        // handling the empty clusters --> reinit
-        for (int i = 0; i < codebook.size(); i++) 
+            return winner;
+        } 
+        catch (InterruptedException e) 
         {
-            if (isEmpty[i]) 
-            {
-                // find largest cluster
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while training restarts", e);
+        } 
+        catch (ExecutionException e) 
+        {
+            throw new IllegalStateException("restart failed", e.getCause());
+        } 
+        finally 
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    // weighted k-means, weights[i] = how many times allVectors[i] occurs in the image
+    // from the same initial codebook the Lloyd iterations match unweighted k-means over the expanded vectors;
+    // the kmeans++ seeds do not, they are drawn over the distinct vectors in first-occurrence order
+    // each vector's assignment is tracked across iterations and the per-cluster sums/counts
+    // are only adjusted for vectors that moved; the reassignment keeps Hamerly bounds per vector,
+    // so a vector that has settled costs one distance (d) instead of a full search (N * d)
+    // when pruneAgainst is set the run gives up once it is clearly worse than another restart
+    // with a pool the nearest-codeword search is split across threads, the result does not depend on it
+    // anytime: the lowest-distortion codebook measured so far is kept, and returned as soon as the budget expires
+    private static TrainingResult trainCodebook(List<int[]> allVectors, int[] weights, int N, Random rand,
+                                                SharedBest pruneAgainst, ExecutorService pool, int threads,
+                                                TrainingBudget budget) 
+    {
+        if (allVectors.isEmpty()) 
+        {
+            System.err.println("No vectors found, returning empty codebook.");
+            return new TrainingResult(Collections.<int[]>emptyList(), 0.0, 0, false, false);
+        }
+
+        // step 1 - kmeans++ initializing
+        List<int[]> codebook = kmeansPlusPlusInit(allVectors, weights, N, rand, budget);
+
+        int n = allVectors.size();
+        int d = codebook.get(0).length;
+        int[] assignment = new int[n];
+        long[][] sums = new long[N][d];
+        long[] counts = new long[N];
+        long totalWeight = 0;
+
+        int[] nearest = new int[n];
+        AssignBounds bounds = new AssignBounds(n);
+
+        // first pass - full assignment and the initial running sums
+        double distortion = assignNearest(allVectors, weights, codebook, nearest, bounds, pool, threads, budget);
+
+        if (budget.expired()) 
+        {
+            // no complete pass, the seeds are a valid codebook but unmeasured
+            return new TrainingResult(codebook, Double.NaN, 0, false, true);
+        }
+
+        System.arraycopy(nearest, 0, assignment, 0, n);
+
+        for (int i = 0; i < n; i++) 
+        {
+            addToCluster(sums, counts, assignment[i], allVectors.get(i), weights[i]);
+            totalWeight += weights[i];
+        }
+
+        // members are not kept per cluster, empty-cluster reinit scans the assignments instead (rare path)
+        FarthestFinder farthest = (cluster, centroid) -> farthestInCluster(allVectors, assignment, cluster, centroid);
+
+        // best-so-far, what gets handed back when time runs out mid-iteration
+        List<int[]> bestCodebook = copyCodebook(codebook);
+        double bestDistortion = distortion;
+        int bestIterations = 0;
+        int iterationsRun = 0;
+
+        // step 2 - iterating
+        for (int iter = 0; iter < MAX_ITERS; iter++) {
+            // updating
+            double sqChange = updateCodewords(codebook, sums, counts, farthest);
+            iterationsRun++;
+
+            if (VERBOSE) 
+            {
+                System.out.println("Iter=" + iter + " sqChange=" + sqChange);
+            }
+            if (sqChange < CONVERGENCE_EPS) 
+            {
+                if (VERBOSE) 
+                {
+                    System.out.println("Converged early, sqChange=" + sqChange);
+                }
+
+                break;
+            }
+
+            // reassigning (the parallel part), then only the moved vectors touch the sums
+            distortion = assignNearest(allVectors, weights, codebook, nearest, bounds, pool, threads, budget);
+
+            if (budget.expired()) 
+            {
+                // nearest[] is partial, drop this iteration
+                return new TrainingResult(bestCodebook, bestDistortion, bestIterations, false, true);
+            }
+            if (distortion < bestDistortion) 
+            {
+                bestCodebook = copyCodebook(codebook);
+                bestDistortion = distortion;
+                bestIterations = iterationsRun;
+            }
+
+            long moved = 0;
+
+            for (int i = 0; i < n; i++) 
+            {
+                int bestIndex = nearest[i];
+
+                if (bestIndex != assignment[i]) 
+                {
+                    int[] v = allVectors.get(i);
+                    removeFromCluster(sums, counts, assignment[i], v, weights[i]);
+                    addToCluster(sums, counts, bestIndex, v, weights[i]);
+                    assignment[i] = bestIndex;
+                    moved += weights[i];
+                }
+            }
+
+            double movedFraction = (double) moved / totalWeight;
+
+            if (movedFraction < MOVED_FRACTION_EPS) 
+            {
+                if (VERBOSE) 
+                {
+                    System.out.println("Converged early, moved=" + moved + " movedFraction=" + movedFraction);
+                }
+                // folding the last few moves into the codewords before stopping
+                if (moved > 0) 
+                {
+                    updateCodewords(codebook, sums, counts, farthest);
+                }
+
+                break;
+            }
+
+            // heuristic: a run this far behind a finished one after RESTART_MIN_ITERS rarely catches up,
+            // but it can, so pruning trades an occasional better codebook for wall-clock time
+            if (pruneAgainst != null && iter + 1 >= RESTART_MIN_ITERS
+                    && distortion > pruneAgainst.get() * RESTART_ABORT_RATIO) 
+            {
+                return new TrainingResult(bestCodebook, bestDistortion, bestIterations, true, false);
+            }
+        }
+
+        // measuring the last update, it may not have been seen by a full pass yet
+        double finalDistortion = assignNearest(allVectors, weights, codebook, nearest, bounds, pool, threads, budget);
+
+        if (budget.expired()) 
+        {
+            return new TrainingResult(bestCodebook, bestDistortion, bestIterations, false, true);
+        }
+        if (finalDistortion <= bestDistortion) 
+        {
+            bestCodebook = codebook;
+            bestDistortion = finalDistortion;
+            bestIterations = iterationsRun;
+        }
+        if (pruneAgainst != null) 
+        {
+            pruneAgainst.offer(bestDistortion);
+        }
+
+        return new TrainingResult(bestCodebook, bestDistortion, bestIterations, false, false);
+    }
+
+    private static List<int[]> copyCodebook(List<int[]> codebook) 
+    {
+        List<int[]> copy = new ArrayList<>(codebook.size());
+
+        for (int[] cw : codebook) 
+        {
+            copy.add(cw.clone());
+        }
+
+        return copy;
+    }
+
+    // Hamerly bounds carried between assignment passes (plain, not squared, distances)
+    // lower[i] <= distance from allVectors[i] to every codeword except nearest[i]; `seen` is the codebook
+    // they were measured against, so the next pass can loosen them by how far the codewords drifted
+    private static final class AssignBounds 
+    {
+        // slack for sqrt/subtraction rounding, a vector is only skipped when it is clearly settled
+        static final double SLACK = 1e-6;
+
+        final double[] lower;
+        List<int[]> seen;
+
+        AssignBounds(int n) 
+        {
+            this.lower = new double[n];
+        }
+    }
+
+    // nearest[i] = closest codeword of allVectors[i] (lowest index on ties, like findNearest),
+    // returns the weighted sum of squared errors
+    // with bounds from an earlier pass, nearest[i] must still hold that pass's result: a vector whose
+    // distance to it is below both its lower bound and half the gap to the next codeword keeps it
+    // without a search, anything closer to a tie falls back to the full scan, so the result is exact
+    // stops early once the budget expires, callers check budget.expired() and discard the partial result
+    private static double assignNearest(List<int[]> allVectors, int[] weights, List<int[]> codebook,
+                                        int[] nearest, AssignBounds bounds, ExecutorService pool, int threads,
+                                        TrainingBudget budget) 
+    {
+        int N = codebook.size();
+        double[] half = new double[N];
+        double maxDrift = 0.0;
+        final boolean bounded = bounds.seen != null;
+
+        if (bounded) 
+        {
+            for (int j = 0; j < N; j++) 
+            {
+                maxDrift = Math.max(maxDrift, Math.sqrt(squaredDistance(bounds.seen.get(j), codebook.get(j))));
+                double closest = Double.MAX_VALUE;
+
+                for (int k = 0; k < N; k++) 
+                {
+                    if (k != j) 
+                    {
+                        closest = Math.min(closest, squaredDistance(codebook.get(j), codebook.get(k)));
+                    }
+                }
+
+                half[j] = 0.5 * Math.sqrt(closest);
+            }
+        }
+
+        final double drift = maxDrift;
+        double[] lower = bounds.lower;
+
+        double total = parallelSum(pool, threads, allVectors.size(), (from, to) -> {
+            double part = 0.0;
+
+            for (int i = from; i < to; i++) 
+            {
+                if ((i & 255) == 0 && budget.expired()) 
+                {
+                    break;
+                }
+
+                int[] v = allVectors.get(i);
+
+                if (bounded) 
+                {
+                    lower[i] -= drift;
+                    double dist = squaredDistance(v, codebook.get(nearest[i]));
+                    double upper = Math.sqrt(dist);
+
+                    if (upper + AssignBounds.SLACK < Math.max(half[nearest[i]], lower[i])) 
+                    {
+                        part += dist * weights[i];
+                        continue;
+                    }
+                }
+
+                // full scan, keeping the runner-up distance as the new lower bound
+                int bestIndex = 0;
+                double bestDist = Double.MAX_VALUE;
+                double secondDist = Double.MAX_VALUE;
+
+                for (int j = 0; j < N; j++) 
+                {
+                    double dist = squaredDistance(v, codebook.get(j));
+
+                    if (dist < bestDist) 
+                    {
+                        secondDist = bestDist;
+                        bestDist = dist;
+                        bestIndex = j;
+                    } 
+                    else if (dist < secondDist) 
+                    {
+                        secondDist = dist;
+                    }
+                }
+
+                nearest[i] = bestIndex;
+                lower[i] = (N > 1) ? Math.sqrt(secondDist) : Double.MAX_VALUE;
+                part += bestDist * weights[i];
+            }
+
+            return part;
+        });
+
+        // a pass cut short by the budget leaves stale bounds behind, start the next one from scratch
+        bounds.seen = budget.expired() ? null : new ArrayList<>(codebook);
+
+        return total;
+    }
+
+    // kmeans++ where a vector of weight w is as likely to be drawn as w separate copies of it
+    // each vector's distance to its closest seed is kept and only checked against the newest seed,
+    // so a pick costs n distances instead of n * (seeds so far)
+    // if the budget runs out the remaining seeds are drawn uniformly so the codebook is still complete
+    private static List<int[]> kmeansPlusPlusInit(List<int[]> allVectors, int[] weights, int N, Random rand,
+                                                  TrainingBudget budget) 
+    {
+        List<int[]> codebook = new ArrayList<>(N);
+
+        long totalWeight = 0;
+
+        for (int w : weights) 
+        {
+            totalWeight += w;
+        }
+
+        // picking the first codeword randomly
+        long firstPick = (long)(rand.nextDouble() * totalWeight);
+        long seen = 0;
+
+        for (int i = 0; i < allVectors.size(); i++) 
+        {
+            seen += weights[i];
+
+            if (seen > firstPick) 
+            {
+                codebook.add(allVectors.get(i).clone());
+                break;
+            }
+        }
+
+        double[] minDist = new double[allVectors.size()];
+        Arrays.fill(minDist, Double.MAX_VALUE);
+        double[] distSq = new double[allVectors.size()];
+
+        while (codebook.size() < N) 
+        {
+            if (budget.expired()) 
+            {
+                while (codebook.size() < N) 
+                {
+                    codebook.add(allVectors.get(rand.nextInt(allVectors.size())).clone());
+                }
+
+                break;
+            }
+
+            int[] newest = codebook.get(codebook.size() - 1);
+            double sumDist = 0;
+
+            for (int i = 0; i < allVectors.size(); i++) 
+            {
+                double dist = squaredDistance(allVectors.get(i), newest);
+
+                if (dist < minDist[i]) 
+                {
+                    minDist[i] = dist;
+                }
+
+                distSq[i] = minDist[i] * weights[i];
+                sumDist += distSq[i];
+            }
+            if (sumDist == 0.0) 
+            {
+                while (codebook.size() < N) 
+                {
+                    codebook.add(allVectors.get(0).clone());
+                }
+
+                break;
+            }
+            double r = rand.nextDouble() * sumDist;
+            double cumsum = 0.0;
+
+            for (int i = 0; i < allVectors.size(); i++) 
+            {
+                cumsum += distSq[i];
+
+                if (cumsum >= r) 
+                {
+                    codebook.add(allVectors.get(i).clone());
+                    break;
+                }
+            }
+        }
+        return codebook;
+    }
+
+    // farthest member of a cluster from the given centroid (first one on ties), null if it has none
+    private interface FarthestFinder 
+    {
+        int[] farthest(int cluster, int[] centroid);
+    }
+
+    private static int[] farthestInCluster(List<int[]> allVectors, int[] assignment, int cluster, int[] centroid) 
+    {
+        double bestDist = -1.0;
+        int[] farthestVec = null;
+
+        for (int v = 0; v < assignment.length; v++) 
+        {
+            if (assignment[v] != cluster) 
+            {
+                continue;
+            }
+
+            int[] vec = allVectors.get(v);
+            double dist = squaredDistance(vec, centroid);
+            if (dist > bestDist) 
+            {
+                bestDist = dist;
+                farthestVec = vec;
+            }
+        }
+
+        return farthestVec;
+    }
+
+    private static double updateCodewords(List<int[]> codebook, long[][] sums, long[] counts, FarthestFinder finder) 
+    {
+        double totalChange = 0.0;
+        int d = codebook.get(0).length;
+
+        int[][] newCentroids = new int[codebook.size()][d];
+        boolean[] isEmpty = new boolean[codebook.size()];
+
+        // computing the normal averages from the running sums
+        for (int i = 0; i < codebook.size(); i++) 
+        {
+            if (counts[i] == 0) 
+            {
+                isEmpty[i] = true;
+                continue;
+            }
+
+            for (int k = 0; k < d; k++) 
+            {
+                newCentroids[i][k] = (int)(sums[i][k] / counts[i]);
+            }
+        }
+
+        // handling the empty clusters --> reinit
+        for (int i = 0; i < codebook.size(); i++) 
+        {
+            if (isEmpty[i]) 
+            {
+                // find largest cluster
                 int largestIdx = -1;
-                int largestSize = 0;
+                long largestSize = 0;
+
+                for (int j = 0; j < counts.length; j++) 
+                {
+                    long sz = counts[j];
+
+                    if (sz > largestSize) 
+                    {
+                        largestSize = sz;
+                        largestIdx = j;
+                    }
+                }
+                if (largestIdx < 0 || largestSize == 0) 
+                {
+                    // fallbacking
+                    newCentroids[i] = codebook.get(0).clone();
+                    continue;
+                }
+
+                int[] oldCentroid = codebook.get(largestIdx);
+                int[] farthestVec = finder.farthest(largestIdx, oldCentroid);
+
+                if (farthestVec == null) 
+                {
+                    newCentroids[i] = codebook.get(largestIdx).clone();
+                } 
+                else 
+                {
+                    for (int k = 0; k < d; k++) 
+                    {
+                        newCentroids[i][k] = (oldCentroid[k] + farthestVec[k]) / 2;
+                    }
+                }
+            }
+        }
+
+        // measuring the changes
+        for (int i = 0; i < codebook.size(); i++) 
+        {
+            double dist = squaredDistance(codebook.get(i), newCentroids[i]);
+            totalChange += dist;
+            codebook.set(i, newCentroids[i]);
+        }
+
+        return totalChange;
+    }
+
+    private static void addToCluster(long[][] sums, long[] counts, int cluster, int[] v, int weight) 
+    {
+        long[] s = sums[cluster];
+
+        for (int k = 0; k < v.length; k++) 
+        {
+            s[k] += (long) v[k] * weight;
+        }
+
+        counts[cluster] += weight;
+    }
+
+    private static void removeFromCluster(long[][] sums, long[] counts, int cluster, int[] v, int weight) 
+    {
+        long[] s = sums[cluster];
+
+        for (int k = 0; k < v.length; k++) 
+        {
+            s[k] -= (long) v[k] * weight;
+        }
+
+        counts[cluster] -= weight;
+    }
+
+    // PARALLEL HELPERS
+    private interface RangeTask 
+    {
+        double run(int from, int to);
+    }
+
+    // splits [0, n) into one contiguous chunk per thread and adds up the chunk results in order
+    // runs inline when there is no pool; the partial sums are whole numbers so the total is exact either way
+    private static double parallelSum(ExecutorService pool, int threads, int n, RangeTask task) 
+    {
+        if (pool == null || threads <= 1 || n < threads) 
+        {
+            return task.run(0, n);
+        }
+
+        List<Future<Double>> parts = new ArrayList<>(threads);
+
+        for (int t = 0; t < threads; t++) 
+        {
+            final int from = (int)((long) n * t / threads);
+            final int to = (int)((long) n * (t + 1) / threads);
+            parts.add(pool.submit(() -> task.run(from, to)));
+        }
+
+        double total = 0.0;
+
+        try 
+        {
+            for (Future<Double> part : parts) 
+            {
+                total += part.get();
+            }
+        } 
+        catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for workers", e);
+        } 
+        catch (ExecutionException e) 
+        {
+            throw new IllegalStateException("worker failed", e.getCause());
+        }
+
+        return total;
+    }
+
+    private static double squaredDistance(int[] a, int[] b) 
+    {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) 
+        {
+            double diff = a[i] - b[i];
+            sum += diff*diff;
+        }
+
+        return sum;
+    }
+
+    private static int findNearest(int[] vec, List<int[]> codebook) 
+    {
+        int bestIndex = 0;
+        double bestDist = Double.MAX_VALUE;
+
+        for (int i = 0; i < codebook.size(); i++) {
+
+            double dist = squaredDistance(vec, codebook.get(i));
+
+            if (dist < bestDist) 
+            {
+                bestDist = dist;
+                bestIndex = i;
+            }
+        }
+        return bestIndex;
+    }
+
+    // CLASSIFIED VQ (block mode only)
+    // nearly uniform blocks skip the codebook entirely and are sent as their mean, the rest are
+    // split into flat / edge / texture by variance and gradient direction, and each class gets
+    // its own smaller codebook, so both training and the nearest-codeword search shrink
+    // mean and flat blocks carry their per-channel mean as side information, so the rate per block
+    // is higher than a plain index of log2(N) bits; printClassified reports it next to the MSE
+    private static final int CLASS_MEAN = 0;
+    private static final int CLASS_FLAT = 1;
+    private static final int CLASS_EDGE = 2;
+    private static final int CLASS_TEXTURE = 3;
+    private static final String[] CLASS_NAMES = { "mean", "flat", "edge", "texture" };
+    // per pixel and channel variance below which the block is coded as its mean alone
+    private static final double MEAN_ONLY_VARIANCE = 4.0;
+    // below this the block still gets a codeword, from the flat codebook
+    private static final double FLAT_VARIANCE = 100.0;
+    // |Gx - Gy| / (Gx + Gy) above this means one dominant gradient direction -> edge
+    private static final double EDGE_ANISOTROPY = 0.5;
+
+    // what encodeClassified produced: decoded block values in the input order, plus the numbers for the report
+    // (encodeSingleCodebook fills the same fields for the plain path, without the per-class ones)
+    private static final class ClassifiedResult 
+    {
+        final List<int[]> reconstructed;
+        final int[] classCounts;
+        final int[] codebookSizes;
+        // per class training outcome (null for the mean class and for classes without blocks)
+        final TrainingResult[] classTraining;
+        // fixed-length rate: class tag + codeword index + 8 bits per channel for a mean where one is sent
+        final double bitsPerBlock;
+        final long classifyNs;
+        final long trainNs;
+        final long encodeNs;
+
+        ClassifiedResult(List<int[]> reconstructed, int[] classCounts, int[] codebookSizes,
+                         TrainingResult[] classTraining, double bitsPerBlock, long classifyNs, long trainNs,
+                         long encodeNs) 
+        {
+            this.reconstructed = reconstructed;
+            this.classCounts = classCounts;
+            this.codebookSizes = codebookSizes;
+            this.classTraining = classTraining;
+            this.bitsPerBlock = bitsPerBlock;
+            this.classifyNs = classifyNs;
+            this.trainNs = trainNs;
+            this.encodeNs = encodeNs;
+        }
+    }
+
+    // per pixel and channel variance, blocks laid out like buildVectors*Block: row-major pixels, channels interleaved
+    // the rounded per-channel means go to means[offset..offset+channels) on the way
+    private static double blockStats(int[] v, int channels, int[] means, int offset) 
+    {
+        int pixels = v.length / channels;
+        double variance = 0.0;
+
+        for (int c = 0; c < channels; c++) 
+        {
+            long sum = 0;
+            long sumSq = 0;
+
+            for (int p = 0; p < pixels; p++) 
+            {
+                int x = v[p * channels + c];
+                sum += x;
+                sumSq += (long) x * x;
+            }
+
+            double mean = (double) sum / pixels;
+            variance += (double) sumSq / pixels - mean * mean;
+            means[offset + c] = (int)((sum + pixels / 2) / pixels);
+        }
+
+        return variance / channels;
+    }
+
+    private static int classifyBlock(int[] v, int blockSize, int channels, double variance) 
+    {
+        if (variance < MEAN_ONLY_VARIANCE) 
+        {
+            return CLASS_MEAN;
+        }
+        if (variance < FLAT_VARIANCE) 
+        {
+            return CLASS_FLAT;
+        }
+        // horizontal vs vertical gradient energy
+        double gx = 0.0;
+        double gy = 0.0;
+
+        for (int yy = 0; yy < blockSize; yy++) 
+        {
+            for (int xx = 0; xx < blockSize; xx++) 
+            {
+                int p = (yy * blockSize + xx) * channels;
+
+                for (int c = 0; c < channels; c++) 
+                {
+                    if (xx + 1 < blockSize) 
+                    {
+                        double d = v[p + channels + c] - v[p + c];
+                        gx += d * d;
+                    }
+                    if (yy + 1 < blockSize) 
+                    {
+                        double d = v[p + blockSize * channels + c] - v[p + c];
+                        gy += d * d;
+                    }
+                }
+            }
+        }
+
+        double anisotropy = (gx + gy > 0) ? Math.abs(gx - gy) / (gx + gy) : 0.0;
+
+        return (anisotropy > EDGE_ANISOTROPY) ? CLASS_EDGE : CLASS_TEXTURE;
+    }
+
+    // signed residual of a block around its per-channel means
+    private static int[] removeMean(int[] v, int[] means, int offset, int channels) 
+    {
+        int[] out = new int[v.length];
+
+        for (int k = 0; k < v.length; k++) 
+        {
+            out[k] = v[k] - means[offset + k % channels];
+        }
+
+        return out;
+    }
+
+    // index bits for a codebook of the given size, fixed length
+    private static int indexBits(int size) 
+    {
+        return (size <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    // exactly N codewords over the searched classes: each class with blocks first gets a floor of a quarter of
+    // its share of the searched blocks (at least one), the rest goes by total variance with largest remainder,
+    // so busy edge/texture blocks get more codewords per block without the flat class shrinking to mean-only coding
+    // all zeros when no block needs a search (a uniform image); otherwise main makes sure N >= 3
+    private static int[] splitCodewords(int N, int[] classCounts, double[] classEnergy) 
+    {
+        int[] sizes = new int[CLASS_NAMES.length];
+        double[] remainder = new double[CLASS_NAMES.length];
+        long searched = 0;
+        double energy = 0.0;
+
+        for (int c = CLASS_FLAT; c <= CLASS_TEXTURE; c++) 
+        {
+            searched += classCounts[c];
+            energy += classEnergy[c];
+        }
+
+        if (searched == 0) 
+        {
+            return sizes;
+        }
+
+        int given = 0;
+
+        for (int c = CLASS_FLAT; c <= CLASS_TEXTURE; c++) 
+        {
+            if (classCounts[c] > 0) 
+            {
+                sizes[c] = Math.max(1, (int)(N * classCounts[c] / (4.0 * searched)));
+                given += sizes[c];
+            }
+        }
+
+        // the floors add up to at most N/4 + 3, and never to more than N for N >= 3
+        int spare = Math.max(0, N - given);
+
+        for (int c = CLASS_FLAT; c <= CLASS_TEXTURE; c++) 
+        {
+            if (classCounts[c] > 0) 
+            {
+                double quota = spare * classEnergy[c] / energy;
+                sizes[c] += (int) quota;
+                remainder[c] = quota - (int) quota;
+                given += (int) quota;
+            }
+        }
+
+        // fewer than three codewords are left over, each goes to a different class
+        while (given < N) 
+        {
+            int pick = -1;
+
+            for (int c = CLASS_FLAT; c <= CLASS_TEXTURE; c++) 
+            {
+                if (classCounts[c] > 0 && (pick < 0 || remainder[c] > remainder[pick])) 
+                {
+                    pick = c;
+                }
+            }
+
+            sizes[pick]++;
+            remainder[pick] = -1.0;
+            given++;
+        }
+
+        return sizes;
+    }
+
+    // classify (means come out of the same pass), train one codebook per searched class, then encode:
+    // mean blocks need no search at all, flat blocks are searched mean-removed against the flat codebook
+    // using the means already computed, edge/texture blocks against their own codebook
+    // classification is per-block work an encoder does for every image, so it is timed on its own
+    // the classes train one after another, each on an equal slice of what is left of the budget, so an
+    // early class cannot use up the deadline of the later ones
+    private static ClassifiedResult encodeClassified(List<int[]> blocks, int blockSize, int channels, int N,
+                                                     int restarts, long seed, boolean prune, int threads,
+                                                     TrainingBudget budget) 
+    {
+        int n = blocks.size();
+        int[] classOf = new int[n];
+        int[] means = new int[n * channels];
+        int[] classCounts = new int[CLASS_NAMES.length];
+        double[] classEnergy = new double[CLASS_NAMES.length];
+
+        long t0 = System.nanoTime();
+
+        for (int i = 0; i < n; i++) 
+        {
+            double variance = blockStats(blocks.get(i), channels, means, i * channels);
+            classOf[i] = classifyBlock(blocks.get(i), blockSize, channels, variance);
+            classCounts[classOf[i]]++;
+
+            if (classOf[i] != CLASS_MEAN) 
+            {
+                classEnergy[classOf[i]] += variance;
+            }
+        }
+
+        long t1 = System.nanoTime();
+
+        // one codebook per class that needs a search; on a uniform image every class is empty,
+        // nothing is trained and every block goes out as its mean
+        int[] codebookSizes = splitCodewords(N, classCounts, classEnergy);
+        TrainingResult[] classTraining = new TrainingResult[CLASS_NAMES.length];
+        List<List<int[]>> codebooks = new ArrayList<>();
+        codebooks.add(Collections.<int[]>emptyList());
+        int classesLeft = 0;
+
+        for (int c = CLASS_FLAT; c <= CLASS_TEXTURE; c++) 
+        {
+            if (classCounts[c] > 0) 
+            {
+                classesLeft++;
+            }
+        }
+
+        for (int c = CLASS_FLAT; c <= CLASS_TEXTURE; c++) 
+        {
+            if (classCounts[c] == 0) 
+            {
+                codebooks.add(Collections.<int[]>emptyList());
+                continue;
+            }
+
+            List<int[]> members = new ArrayList<>(classCounts[c]);
+
+            for (int i = 0; i < n; i++) 
+            {
+                if (classOf[i] == c) 
+                {
+                    members.add(c == CLASS_FLAT ? removeMean(blocks.get(i), means, i * channels, channels)
+                                                : blocks.get(i));
+                }
+            }
+
+            classTraining[c] = trainWithRestarts(dedupeVectors(members), codebookSizes[c], restarts, seed,
+                    prune, threads, budget.slice(classesLeft--));
+            codebooks.add(classTraining[c].codebook);
+        }
+
+        long t2 = System.nanoTime();
+
+        // encoding - one codeword index per searched block, the residual buffer is reused
+        int[] index = new int[n];
+        int[] residual = new int[n == 0 ? 0 : blocks.get(0).length];
+        List<int[]> flatBook = codebooks.get(CLASS_FLAT);
+
+        for (int i = 0; i < n; i++) 
+        {
+            int[] v = blocks.get(i);
+
+            if (classOf[i] == CLASS_FLAT) 
+            {
+                int offset = i * channels;
+
+                for (int k = 0; k < v.length; k++) 
+                {
+                    residual[k] = v[k] - means[offset + k % channels];
+                }
+
+                index[i] = findNearest(residual, flatBook);
+            } 
+            else if (classOf[i] != CLASS_MEAN) 
+            {
+                index[i] = findNearest(v, codebooks.get(classOf[i]));
+            }
+        }
+
+        long t3 = System.nanoTime();
+
+        // decoding (not timed) and the rate: 2 bits of class tag per block on top of index and means
+        List<int[]> reconstructed = new ArrayList<>(n);
+        long bits = 0;
+
+        for (int i = 0; i < n; i++) 
+        {
+            int c = classOf[i];
+            int offset = i * channels;
+            bits += 2;
+
+            if (c == CLASS_MEAN || c == CLASS_FLAT) 
+            {
+                int[] out = new int[blocks.get(i).length];
+                int[] shape = (c == CLASS_FLAT) ? flatBook.get(index[i]) : null;
+
+                for (int k = 0; k < out.length; k++) 
+                {
+                    int value = means[offset + k % channels] + (shape == null ? 0 : shape[k]);
+                    out[k] = Math.max(0, Math.min(255, value));
+                }
+
+                reconstructed.add(out);
+                bits += 8 * channels;
+            } 
+            else 
+            {
+                reconstructed.add(codebooks.get(c).get(index[i]));
+            }
+            if (c != CLASS_MEAN) 
+            {
+                bits += indexBits(codebookSizes[c]);
+            }
+        }
+
+        return new ClassifiedResult(reconstructed, classCounts, codebookSizes, classTraining,
+                (n == 0) ? 0.0 : (double) bits / n,
+                t1 - t0, t2 - t1, t3 - t2);
+    }
+
+    // the plain path --compare measures against: one codebook of N over every block
+    private static ClassifiedResult encodeSingleCodebook(List<int[]> blocks, int N, int restarts, long seed,
+                                                         boolean prune, int threads) 
+    {
+        long t0 = System.nanoTime();
+        List<int[]> codebook = trainWithRestarts(dedupeVectors(blocks), N, restarts, seed, prune, threads,
+                new TrainingBudget(0)).codebook;
+        long t1 = System.nanoTime();
+        int[] index = new int[blocks.size()];
+
+        for (int i = 0; i < blocks.size(); i++) 
+        {
+            index[i] = findNearest(blocks.get(i), codebook);
+        }
+
+        long t2 = System.nanoTime();
+        List<int[]> reconstructed = new ArrayList<>(blocks.size());
+
+        for (int i = 0; i < blocks.size(); i++) 
+        {
+            reconstructed.add(codebook.get(index[i]));
+        }
+
+        return new ClassifiedResult(reconstructed, null, new int[]{ N }, null, indexBits(N), 0, t1 - t0, t2 - t1);
+    }
+
+    // --classified entry point; with compare both paths run once untimed first, so neither is measured cold
+    private static ClassifiedResult runClassified(List<int[]> blocks, int blockSize, int channels, int N,
+                                                  int restarts, long seed, boolean prune, int threads,
+                                                  long deadlineMs, boolean compare) 
+    {
+        if (compare) 
+        {
+            encodeClassified(blocks, blockSize, channels, N, restarts, seed, prune, threads,
+                    new TrainingBudget(deadlineMs));
+            encodeSingleCodebook(blocks, N, restarts, seed, prune, threads);
+        }
+
+        TrainingBudget budget = new TrainingBudget(deadlineMs);
+        watchForCancel(budget);
+        ClassifiedResult res = encodeClassified(blocks, blockSize, channels, N, restarts, seed, prune, threads,
+                budget);
+        ClassifiedResult base = compare ? encodeSingleCodebook(blocks, N, restarts, seed, prune, threads) : null;
+        printClassified(res, base, blocks);
+
+        return res;
+    }
+
+    // share of blocks per path, timings, MSE and rate, and the plain single-codebook run next to it if given
+    // classification is charged to the encode side in the speed-ups, an encoder runs it for every image
+    private static void printClassified(ClassifiedResult res, ClassifiedResult base, List<int[]> blocks) 
+    {
+        StringBuilder sb = new StringBuilder("Classified:");
+
+        for (int c = 0; c < CLASS_NAMES.length; c++) 
+        {
+            sb.append(String.format(Locale.ROOT, " %s %.1f%% (%d blocks, %s)", CLASS_NAMES[c],
+                    100.0 * res.classCounts[c] / blocks.size(), res.classCounts[c],
+                    c == CLASS_MEAN ? "no search" : "N=" + res.codebookSizes[c]));
+        }
+
+        System.out.println(sb);
+
+        for (int c = CLASS_FLAT; c <= CLASS_TEXTURE; c++) 
+        {
+            TrainingResult tr = res.classTraining[c];
+
+            if (tr != null) 
+            {
+                System.out.println("Classified: " + CLASS_NAMES[c] + " codebook " + tr.iterations
+                        + " iterations, distortion=" + tr.distortion
+                        + (tr.timedOut ? " (stopped at deadline or cancel, best so far)" : " (converged)"));
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT,
+                "Classified: classify %.1f ms, train %.1f ms, encode %.1f ms, MSE %.2f at %.2f bits/block",
+                res.classifyNs / 1e6, res.trainNs / 1e6, res.encodeNs / 1e6,
+                blockMse(blocks, res.reconstructed), res.bitsPerBlock));
+
+        if (base == null) 
+        {
+            return;
+        }
+
+        long classifiedEncode = res.classifyNs + res.encodeNs;
+
+        System.out.println(String.format(Locale.ROOT,
+                "Baseline:   train %.1f ms, encode %.1f ms, MSE %.2f at %.2f bits/block",
+                base.trainNs / 1e6, base.encodeNs / 1e6, blockMse(blocks, base.reconstructed), base.bitsPerBlock));
+        System.out.println(String.format(Locale.ROOT,
+                "Speed-up:   train %.2fx, classify+encode %.2fx, total %.2fx",
+                (double) base.trainNs / Math.max(1, res.trainNs),
+                (double) base.encodeNs / Math.max(1, classifiedEncode),
+                (double)(base.trainNs + base.encodeNs) / Math.max(1, res.trainNs + classifiedEncode)));
+    }
+
+    private static double blockMse(List<int[]> blocks, List<int[]> reconstructed) 
+    {
+        double total = 0.0;
+        long count = 0;
+
+        for (int i = 0; i < blocks.size(); i++) 
+        {
+            total += squaredDistance(blocks.get(i), reconstructed.get(i));
+            count += blocks.get(i).length;
+        }
+
+        return (count == 0) ? 0.0 : total / count;
+    }
+
+    // writes decoded blocks back in buildVectorsGrayBlock order, same edge clamping as reconstructGrayBlock
+    private static int[][] paintGrayBlocks(int[][] orig, List<int[]> blocks, int blockSize, int w, int h) 
+    {
+        int[][] rec = new int[h][w];
+
+        for (int y = 0; y < h; y++) 
+        {
+            rec[y] = orig[y].clone();
+        }
+
+        int b = 0;
+
+        for (int by = 0; by < h; by += blockSize) 
+        {
+            for (int bx = 0; bx < w; bx += blockSize) 
+            {
+                int[] cw = blocks.get(b++);
+                int idx = 0;
+
+                for (int yy = 0; yy < blockSize; yy++) 
+                {
+                    int dstY = Math.min(by+yy, h-1);
+
+                    for (int xx = 0; xx < blockSize; xx++) 
+                    {
+                        int dstX = Math.min(bx+xx, w-1);
+                        rec[dstY][dstX] = cw[idx++];
+                    }
+                }
+            }
+        }
+
+        return rec;
+    }
+
+    private static int[][][] paintColorBlocks(int[][][] orig, List<int[]> blocks, int blockSize, int w, int h) 
+    {
+        int[][][] rec = new int[h][w][3];
+
+        for (int y = 0; y < h; y++) 
+        {
+            for (int x = 0; x < w; x++) 
+            {
+                rec[y][x] = orig[y][x].clone();
+            }
+        }
+
+        int b = 0;
+
+        for (int by = 0; by < h; by += blockSize) 
+        {
+            for (int bx = 0; bx < w; bx += blockSize) 
+            {
+                int[] cw = blocks.get(b++);
+                int idx = 0;
+
+                for (int yy = 0; yy < blockSize; yy++) 
+                {
+                    int dstY = Math.min(by+yy, h-1);
+
+                    for (int xx = 0; xx < blockSize; xx++) 
+                    {
+                        int dstX = Math.min(bx+xx, w-1);
+
+                        rec[dstY][dstX][0] = cw[idx++];
+                        rec[dstY][dstX][1] = cw[idx++];
+                        rec[dstY][dstX][2] = cw[idx++];
+                    }
+                }
+            }
+        }
+
+        return rec;
+    }
+
+    // TILED CONTAINER
+    // layout: header, codebook, tile offset index, then one deflated block of codeword indices per tile
+    // a tile only needs the header + codebook to decode, so a viewport reads just the tiles it touches
+    //   int magic, int version, int w, int h, boolean color, int M, int tileW, int tileH,
+    //   int N, int dim, N*dim codebook bytes, int tilesX, int tilesY,
+    //   (tilesX*tilesY + 1) long offsets, tile payloads
+    // indices inside a tile are row-major over its vectors, a byte each if N <= 256, else a short
+    private static final int TILE_MAGIC = 0x4B565154; // "KVQT"
+    private static final int TILE_VERSION = 1;
+    private static final int DEFAULT_TILE_PX = 64;
+    private static final int DEFAULT_TILE_CACHE = 64;
+
+    // pixel footprint of one vector, {width, height}: a pixel pair for M=2, else a block
+    // for M=2 and an odd width the last column is coded as a clamped pair (pixel, pixel), while
+    // reconstruct*2Pixel copies that column from the original, so there the two differ in that column only
+    private static int[] vectorFootprint(int M) 
+    {
+        if (M == 2) 
+        {
+            return new int[]{ 2, 1 };
+        }
+
+        int blockSize = (int)Math.round(Math.sqrt(M));
+
+        return new int[]{ blockSize, blockSize };
+    }
+
+    // one vector at pixel (x0, y0), same component order as buildVectors*, edges clamped like the block builders
+    private static void extractVector(int[][] gray, int[][][] rgb, int x0, int y0, int vw, int vh,
+                                      int w, int h, int[] out) 
+    {
+        int idx = 0;
+
+        for (int yy = 0; yy < vh; yy++) 
+        {
+            int srcY = Math.min(y0+yy, h-1);
+
+            for (int xx = 0; xx < vw; xx++) 
+            {
+                int srcX = Math.min(x0+xx, w-1);
+
+                if (rgb == null) 
+                {
+                    out[idx++] = gray[srcY][srcX];
+                } 
+                else 
+                {
+                    out[idx++] = rgb[srcY][srcX][0];
+                    out[idx++] = rgb[srcY][srcX][1];
+                    out[idx++] = rgb[srcY][srcX][2];
+                }
+            }
+        }
+    }
+
+    // nearest codeword for every vector of the image grid, row-major, pass gray or rgb (the other null)
+    private static int[] encodeGrid(int[][] gray, int[][][] rgb, int w, int h, int M, List<int[]> codebook,
+                                    ExecutorService pool, int threads) 
+    {
+        int[] fp = vectorFootprint(M);
+        int gw = (w + fp[0] - 1) / fp[0];
+        int gh = (h + fp[1] - 1) / fp[1];
+        int dim = fp[0] * fp[1] * (rgb == null ? 1 : 3);
+        int[] indices = new int[gw * gh];
+
+        parallelSum(pool, threads, gh, (from, to) -> {
+            int[] vec = new int[dim];
+
+            for (int gy = from; gy < to; gy++) 
+            {
+                for (int gx = 0; gx < gw; gx++) 
+                {
+                    extractVector(gray, rgb, gx * fp[0], gy * fp[1], fp[0], fp[1], w, h, vec);
+                    indices[gy * gw + gx] = findNearest(vec, codebook);
+                }
+            }
+
+            return 0.0;
+        });
+
+        return indices;
+    }
+
+    // tilePx is rounded up to whole vectors
+    private static void writeTiledContainer(File f, int w, int h, boolean color, int M, List<int[]> codebook,
+                                            int[] gridIndices, int tilePx) throws IOException 
+    {
+        int[] fp = vectorFootprint(M);
+        int gw = (w + fp[0] - 1) / fp[0];
+        int gh = (h + fp[1] - 1) / fp[1];
+        int tileVx = Math.max(1, (tilePx + fp[0] - 1) / fp[0]);
+        int tileVy = Math.max(1, (tilePx + fp[1] - 1) / fp[1]);
+        int tilesX = (gw + tileVx - 1) / tileVx;
+        int tilesY = (gh + tileVy - 1) / tileVy;
+        int numTiles = tilesX * tilesY;
+        int dim = codebook.get(0).length;
+        boolean wide = codebook.size() > 256;
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream hdr = new DataOutputStream(headerBytes);
+        hdr.writeInt(TILE_MAGIC);
+        hdr.writeInt(TILE_VERSION);
+        hdr.writeInt(w);
+        hdr.writeInt(h);
+        hdr.writeBoolean(color);
+        hdr.writeInt(M);
+        hdr.writeInt(tileVx * fp[0]);
+        hdr.writeInt(tileVy * fp[1]);
+        hdr.writeInt(codebook.size());
+        hdr.writeInt(dim);
+
+        for (int[] cw : codebook) 
+        {
+            for (int k = 0; k < dim; k++) 
+            {
+                hdr.writeByte(cw[k]);
+            }
+        }
+
+        hdr.writeInt(tilesX);
+        hdr.writeInt(tilesY);
+        hdr.flush();
+
+        long[] offsets = new long[numTiles + 1];
+        byte[] raw = new byte[tileVx * tileVy * (wide ? 2 : 1)];
+        byte[] chunk = new byte[8192];
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater();
+
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) 
+        {
+            raf.setLength(0);
+            raf.write(headerBytes.toByteArray());
+
+            // the index is filled in once the tile sizes are known
+            long indexPos = raf.getFilePointer();
+            raf.seek(indexPos + 8L * offsets.length);
+
+            for (int ty = 0; ty < tilesY; ty++) 
+            {
+                for (int tx = 0; tx < tilesX; tx++) 
+                {
+                    int n = 0;
+                    int gyEnd = Math.min(gh, (ty + 1) * tileVy);
+                    int gxEnd = Math.min(gw, (tx + 1) * tileVx);
+
+                    for (int gy = ty * tileVy; gy < gyEnd; gy++) 
+                    {
+                        for (int gx = tx * tileVx; gx < gxEnd; gx++) 
+                        {
+                            int idx = gridIndices[gy * gw + gx];
+
+                            if (wide) 
+                            {
+                                raw[n++] = (byte)(idx >> 8);
+                            }
+
+                            raw[n++] = (byte) idx;
+                        }
+                    }
+
+                    deflater.reset();
+                    deflater.setInput(raw, 0, n);
+                    deflater.finish();
+                    packed.reset();
+
+                    while (!deflater.finished()) 
+                    {
+                        int len = deflater.deflate(chunk);
+                        packed.write(chunk, 0, len);
+                    }
+
+                    offsets[ty * tilesX + tx] = raf.getFilePointer();
+                    raf.write(packed.toByteArray());
+                }
+            }
+
+            offsets[numTiles] = raf.getFilePointer();
+
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(8 * offsets.length);
+            DataOutputStream idxOut = new DataOutputStream(indexBytes);
+
+            for (long off : offsets) 
+            {
+                idxOut.writeLong(off);
+            }
+
+            idxOut.flush();
+            raf.seek(indexPos);
+            raf.write(indexBytes.toByteArray());
+        } 
+        finally 
+        {
+            deflater.end();
+        }
+    }
+
+    // random-access reader for the tiled container
+    // only the header and codebook are read up front, tile offsets are looked up per tile,
+    // so opening a file and decoding a viewport costs the same whatever the image size
+    // decoded tiles are kept in an LRU cache so panning around one area does not re-inflate them
+    private static final class TiledDecoder implements Closeable 
+    {
+        final int width;
+        final int height;
+        final boolean color;
+        final int M;
+        final int tileW;
+        final int tileH;
+        final int tilesX;
+        final int tilesY;
+        // tiles inflated so far, cache hits excluded
+        int tilesDecoded;
+
+        private final RandomAccessFile raf;
+        private final int[] footprint;
+        private final int channels;
+        private final boolean wide;
+        private final List<int[]> codebook;
+        private final long indexPos;
+        private final Map<Integer, int[]> cache;
+
+        TiledDecoder(File f, final int cacheTiles) throws IOException 
+        {
+            raf = new RandomAccessFile(f, "r");
+
+            try 
+            {
+                if (raf.readInt() != TILE_MAGIC || raf.readInt() != TILE_VERSION) 
+                {
+                    throw new IOException("not a tiled VQ container: " + f);
+                }
+
+                width = raf.readInt();
+                height = raf.readInt();
+                color = raf.readBoolean();
+                M = raf.readInt();
+                tileW = raf.readInt();
+                tileH = raf.readInt();
+
+                int N = raf.readInt();
+                int dim = raf.readInt();
+                byte[] cb = new byte[N * dim];
+                raf.readFully(cb);
+                codebook = new ArrayList<>(N);
+
+                for (int i = 0; i < N; i++) 
+                {
+                    int[] cw = new int[dim];
+
+                    for (int k = 0; k < dim; k++) 
+                    {
+                        cw[k] = cb[i * dim + k] & 0xFF;
+                    }
+
+                    codebook.add(cw);
+                }
+
+                tilesX = raf.readInt();
+                tilesY = raf.readInt();
+                indexPos = raf.getFilePointer();
+                footprint = vectorFootprint(M);
+                channels = color ? 3 : 1;
+                wide = N > 256;
+            } 
+            catch (IOException e) 
+            {
+                raf.close();
+                throw e;
+            }
+
+            cache = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) 
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) 
+                {
+                    return size() > cacheTiles;
+                }
+            };
+        }
+
+        // pixels of the window [x, x+w) x [y, y+h), only valid for grayscale containers
+        int[][] decodeGray(int x, int y, int w, int h) throws IOException 
+        {
+            checkRegion(x, y, w, h, false);
+            int[][] out = new int[h][w];
+
+            for (int ty = y / tileH; ty <= (y + h - 1) / tileH; ty++) 
+            {
+                for (int tx = x / tileW; tx <= (x + w - 1) / tileW; tx++) 
+                {
+                    int[] px = tile(tx, ty);
+                    int tx0 = tx * tileW;
+                    int ty0 = ty * tileH;
+                    int tw = Math.min(tileW, width - tx0);
+                    int yFrom = Math.max(y, ty0);
+                    int yTo = Math.min(y + h, ty0 + tileH);
+                    int xFrom = Math.max(x, tx0);
+                    int xTo = Math.min(x + w, tx0 + tileW);
+
+                    for (int py = yFrom; py < yTo; py++) 
+                    {
+                        for (int pxX = xFrom; pxX < xTo; pxX++) 
+                        {
+                            out[py - y][pxX - x] = px[(py - ty0) * tw + (pxX - tx0)];
+                        }
+                    }
+                }
+            }
+
+            return out;
+        }
+
+        // same as decodeGray for color containers, [row][col][r,g,b]
+        int[][][] decodeColor(int x, int y, int w, int h) throws IOException 
+        {
+            checkRegion(x, y, w, h, true);
+            int[][][] out = new int[h][w][3];
+
+            for (int ty = y / tileH; ty <= (y + h - 1) / tileH; ty++) 
+            {
+                for (int tx = x / tileW; tx <= (x + w - 1) / tileW; tx++) 
+                {
+                    int[] px = tile(tx, ty);
+                    int tx0 = tx * tileW;
+                    int ty0 = ty * tileH;
+                    int tw = Math.min(tileW, width - tx0);
+                    int yFrom = Math.max(y, ty0);
+                    int yTo = Math.min(y + h, ty0 + tileH);
+                    int xFrom = Math.max(x, tx0);
+                    int xTo = Math.min(x + w, tx0 + tileW);
+
+                    for (int py = yFrom; py < yTo; py++) 
+                    {
+                        for (int pxX = xFrom; pxX < xTo; pxX++) 
+                        {
+                            int src = ((py - ty0) * tw + (pxX - tx0)) * 3;
+                            out[py - y][pxX - x][0] = px[src];
+                            out[py - y][pxX - x][1] = px[src + 1];
+                            out[py - y][pxX - x][2] = px[src + 2];
+                        }
+                    }
+                }
+            }
+
+            return out;
+        }
+
+        private void checkRegion(int x, int y, int w, int h, boolean wantColor) 
+        {
+            if (wantColor != color) 
+            {
+                throw new IllegalStateException("container is " + (color ? "color" : "grayscale"));
+            }
+            if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) 
+            {
+                throw new IllegalArgumentException("region " + w + "x" + h + "+" + x + "+" + y
+                        + " outside " + width + "x" + height);
+            }
+        }
+
+        // decoded pixels of one tile, row-major with interleaved channels, clipped to the image
+        private synchronized int[] tile(int tx, int ty) throws IOException 
+        {
+            int id = ty * tilesX + tx;
+            int[] px = cache.get(id);
+
+            if (px == null) 
+            {
+                px = decodeTile(tx, ty);
+                cache.put(id, px);
+                tilesDecoded++;
+            }
+
+            return px;
+        }
+
+        private int[] decodeTile(int tx, int ty) throws IOException 
+        {
+            int id = ty * tilesX + tx;
+            raf.seek(indexPos + 8L * id);
+            long start = raf.readLong();
+            long end = raf.readLong();
+
+            byte[] packed = new byte[(int)(end - start)];
+            raf.seek(start);
+            raf.readFully(packed);
+
+            int vw = footprint[0];
+            int vh = footprint[1];
+            int tileVx = tileW / vw;
+            int tileVy = tileH / vh;
+            int gw = (width + vw - 1) / vw;
+            int gh = (height + vh - 1) / vh;
+            int gxEnd = Math.min(gw, (tx + 1) * tileVx);
+            int gyEnd = Math.min(gh, (ty + 1) * tileVy);
+            int numVectors = (gxEnd - tx * tileVx) * (gyEnd - ty * tileVy);
+            byte[] raw = new byte[numVectors * (wide ? 2 : 1)];
+
+            Inflater inflater = new Inflater();
+
+            try 
+            {
+                inflater.setInput(packed);
+                int n = 0;
+
+                while (n < raw.length) 
+                {
+                    int len = inflater.inflate(raw, n, raw.length - n);
+
+                    if (len == 0 && (inflater.finished() || inflater.needsInput())) 
+                    {
+                        throw new IOException("truncated tile " + id);
+                    }
+
+                    n += len;
+                }
+            } 
+            catch (DataFormatException e) 
+            {
+                throw new IOException("corrupt tile " + id, e);
+            } 
+            finally 
+            {
+                inflater.end();
+            }
+
+            int x0 = tx * tileW;
+            int y0 = ty * tileH;
+            int tw = Math.min(tileW, width - x0);
+            int th = Math.min(tileH, height - y0);
+            int[] px = new int[tw * th * channels];
+            int r = 0;
+
+            // same write order as reconstruct*, so clamped edge pixels end up with the same value
+            for (int gy = ty * tileVy; gy < gyEnd; gy++) 
+            {
+                for (int gx = tx * tileVx; gx < gxEnd; gx++) 
+                {
+                    int idx = raw[r++] & 0xFF;
+
+                    if (wide) 
+                    {
+                        idx = (idx << 8) | (raw[r++] & 0xFF);
+                    }
+
+                    int[] cw = codebook.get(idx);
+                    int k = 0;
+
+                    for (int yy = 0; yy < vh; yy++) 
+                    {
+                        int dstY = Math.min(gy * vh + yy, height - 1) - y0;
+
+                        for (int xx = 0; xx < vw; xx++) 
+                        {
+                            int dstX = Math.min(gx * vw + xx, width - 1) - x0;
+                            int dst = (dstY * tw + dstX) * channels;
+
+                            for (int c = 0; c < channels; c++) 
+                            {
+                                px[dst + c] = cw[k++];
+                            }
+                        }
+                    }
+                }
+            }
+
+            return px;
+        }
+
+        @Override
+        public void close() throws IOException 
+        {
+            raf.close();
+        }
+    }
+
+    // java MyCompression view <file.vqt> [x y w h] [--cache T]
+    // decodes just the tiles under the window and shows it
+    private static void runViewer(String[] args) 
+    {
+        if (args.length < 2) 
+        {
+            printUsage();
+            return;
+        }
+
+        int[] rect = null;
+        int cacheTiles = DEFAULT_TILE_CACHE;
+        int a = 2;
+
+        if (args.length >= 6 && !args[2].startsWith("--")) 
+        {
+            rect = new int[]{ Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                              Integer.parseInt(args[4]), Integer.parseInt(args[5]) };
+            a = 6;
+        }
+        for (; a < args.length; a++) 
+        {
+            if (args[a].equals("--cache") && a + 1 < args.length) 
+            {
+                cacheTiles = Integer.parseInt(args[++a]);
+            } 
+            else 
+            {
+                System.err.println("ERROR: unknown view option " + args[a]);
+                return;
+            }
+        }
+
+        long t0 = System.nanoTime();
+
+        try (TiledDecoder dec = new TiledDecoder(new File(args[1]), cacheTiles)) 
+        {
+            if (rect == null) 
+            {
+                rect = new int[]{ 0, 0, dec.width, dec.height };
+            }
+
+            BufferedImage img;
+
+            if (dec.color) 
+            {
+                img = makeImageColor(dec.decodeColor(rect[0], rect[1], rect[2], rect[3]), rect[2], rect[3]);
+            } 
+            else 
+            {
+                img = makeImageGray(dec.decodeGray(rect[0], rect[1], rect[2], rect[3]), rect[2], rect[3]);
+            }
+
+            double ms = (System.nanoTime() - t0) / 1e6;
+            System.out.println("Decoded " + rect[2] + "x" + rect[3] + "+" + rect[0] + "+" + rect[1]
+                    + " of " + dec.width + "x" + dec.height + " from " + dec.tilesDecoded + " of "
+                    + (dec.tilesX * dec.tilesY) + " tiles in " + String.format(Locale.ROOT, "%.1f", ms) + " ms");
+
+            displayImage(img, "Region " + rect[2] + "x" + rect[3] + "+" + rect[0] + "+" + rect[1] + " of " + args[1]);
+        } 
+        catch (IOException | IllegalArgumentException | IllegalStateException e) 
+        {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    // SHARDED TRAINING
+    // one codebook over a corpus of images, split across worker JVMs that each own a shard of it
+    //   java MyCompression train-sharded --workers W --M M --N N [--seed S] [--local] [--out codebook.txt] <files...>
+    // worker k gets a contiguous range of files, each file deduped on its own, and keeps assignments +
+    // per-cluster sums for it; the coordinator only holds the codebook and reduces the sums every Lloyd iteration
+    // the coordinator repeats trainCodebook step for step over "shard 0, then shard 1, ..." order, which is
+    // plain file order for any W, and every partial sum is a whole number, so it ends with exactly the codebook
+    // trainCodebook gives on the per-file deduped corpus in one process with the same seed (--local runs that)
+    private static final int OP_LOAD = 1;
+    private static final int OP_PICK_WEIGHT = 2;
+    private static final int OP_PP_STEP = 3;
+    private static final int OP_PICK_DIST = 4;
+    private static final int OP_ASSIGN = 5;
+    private static final int OP_MEASURE = 6;
+    private static final int OP_FARTHEST = 7;
+    private static final int OP_FIRST = 8;
+    private static final int OP_SHUTDOWN = 9;
+    private static final int SHARD_CONNECT_TIMEOUT_MS = 60000;
+
+    private static void runShardedTraining(String[] args) 
+    {
+        int workers = 2;
+        int M = 4;
+        int N = 64;
+        long seed = new Random().nextLong();
+        boolean local = false;
+        String outPath = null;
+        List<String> files = new ArrayList<>();
+
+        for (int a = 1; a < args.length; a++) 
+        {
+            if (args[a].equals("--workers") && a + 1 < args.length) 
+            {
+                workers = Integer.parseInt(args[++a]);
+            } 
+            else if (args[a].equals("--M") && a + 1 < args.length) 
+            {
+                M = Integer.parseInt(args[++a]);
+            } 
+            else if (args[a].equals("--N") && a + 1 < args.length) 
+            {
+                N = Integer.parseInt(args[++a]);
+            } 
+            else if (args[a].equals("--seed") && a + 1 < args.length) 
+            {
+                seed = Long.parseLong(args[++a]);
+            } 
+            else if (args[a].equals("--local")) 
+            {
+                local = true;
+            } 
+            else if (args[a].equals("--out") && a + 1 < args.length) 
+            {
+                outPath = args[++a];
+            } 
+            else if (args[a].startsWith("--")) 
+            {
+                System.err.println("ERROR: unknown option " + args[a]);
+                printUsage();
+                return;
+            } 
+            else 
+            {
+                files.add(args[a]);
+            }
+        }
+
+        int blockSize = (int)Math.round(Math.sqrt(M));
+
+        if (M != 2 && blockSize * blockSize != M) 
+        {
+            System.err.println("ERROR: M must be 2 OR a perfect square (4,9,16,...)");
+            return;
+        }
+        if (files.isEmpty() || workers < 1) 
+        {
+            System.err.println("ERROR: need at least one image and one worker");
+            return;
+        }
+
+        String[] fileArr = files.toArray(new String[0]);
+        long t0 = System.nanoTime();
+        TrainingResult res;
+
+        try 
+        {
+            if (local) 
+            {
+                res = trainShardsLocally(fileArr, M, N, seed);
+            } 
+            else 
+            {
+                try (ShardCoordinator coord = new ShardCoordinator(workers)) 
+                {
+                    coord.load(fileArr, M);
+                    res = trainSharded(coord, N, seed);
+                }
+            }
+        } 
+        catch (IOException e) 
+        {
+            System.err.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        double ms = (System.nanoTime() - t0) / 1e6;
+        int[][] cbArr = res.codebook.toArray(new int[0][]);
+        System.out.println((local ? "Local" : "Sharded") + " training over " + files.size() + " images, "
+                + (local ? "1 process" : workers + " shards") + ": " + res.iterations + " iterations, distortion=" + res.distortion
+                + ", codebook hash=" + Integer.toHexString(Arrays.deepHashCode(cbArr))
+                + String.format(Locale.ROOT, ", %.1f ms", ms));
+
+        if (outPath != null) 
+        {
+            // one codeword per line, components separated by spaces
+            try (PrintStream ps = new PrintStream(new FileOutputStream(outPath))) 
+            {
+                for (int[] cw : cbArr) 
+                {
+                    StringBuilder sb = new StringBuilder();
+
+                    for (int k = 0; k < cw.length; k++) 
+                    {
+                        sb.append(k == 0 ? "" : " ").append(cw[k]);
+                    }
+
+                    ps.println(sb);
+                }
+            } 
+            catch (IOException e) 
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // worker `id` of `workers`: the contiguous file range [id*F/W, (id+1)*F/W), each file deduped on its own
+    // and appended in file order, so the shards concatenated in worker order are the same list for every W
+    private static WeightedVectors loadShard(String[] files, int M, int workers, int id) throws IOException 
+    {
+        int from = (int)((long) files.length * id / workers);
+        int to = (int)((long) files.length * (id + 1) / workers);
+
+        return loadFiles(files, M, from, to);
+    }
+
+    // files[from..to) deduped per file and concatenated; files are 352x288 .raw or .rgb like in main,
+    // and the whole corpus (not only this range) must be of one kind
+    private static WeightedVectors loadFiles(String[] files, int M, int from, int to) throws IOException 
+    {
+        int blockSize = (int)Math.round(Math.sqrt(M));
+        boolean color = corpusIsColor(files);
+        List<int[]> vectors = new ArrayList<>();
+        List<int[]> weightParts = new ArrayList<>();
+        int total = 0;
+
+        for (int j = from; j < to; j++) 
+        {
+            List<int[]> fileVectors;
+
+            if (color) 
+            {
+                int[][][] img = readColor(files[j]);
+
+                if (img == null) 
+                {
+                    throw new IOException("could not read " + files[j]);
+                }
+
+                fileVectors = (M == 2) ? buildVectorsColor2Pixel(img, WIDTH, HEIGHT)
+                                       : buildVectorsColorBlock(img, blockSize, WIDTH, HEIGHT);
+            } 
+            else 
+            {
+                int[][] img = readGrayscale(files[j]);
+
+                if (img == null) 
+                {
+                    throw new IOException("could not read " + files[j]);
+                }
+
+                fileVectors = (M == 2) ? buildVectorsGray2Pixel(img, WIDTH, HEIGHT)
+                                       : buildVectorsGrayBlock(img, blockSize, WIDTH, HEIGHT);
+            }
+
+            WeightedVectors unique = dedupeVectors(fileVectors);
+            vectors.addAll(unique.vectors);
+            weightParts.add(unique.weights);
+            total += unique.weights.length;
+        }
+
+        int[] weights = new int[total];
+        int pos = 0;
+
+        for (int[] part : weightParts) 
+        {
+            System.arraycopy(part, 0, weights, pos, part.length);
+            pos += part.length;
+        }
+
+        return new WeightedVectors(vectors, weights);
+    }
+
+    // true for an all-.rgb corpus, false for all-.raw, anything else is rejected
+    private static boolean corpusIsColor(String[] files) throws IOException 
+    {
+        Boolean corpusColor = null;
+
+        for (String f : files) 
+        {
+            long len = new File(f).length();
+            boolean color;
+
+            if (len == (long) WIDTH * HEIGHT) 
+            {
+                color = false;
+            } 
+            else if (len == (long) WIDTH * HEIGHT * 3) 
+            {
+                color = true;
+            } 
+            else 
+            {
+                throw new IOException("file size mismatch for " + f + ", must be 352x288 or 3*(352x288)");
+            }
+            if (corpusColor != null && corpusColor != color) 
+            {
+                throw new IOException("mixed grayscale and color images in one corpus: " + f);
+            }
+
+            corpusColor = color;
+        }
+
+        return corpusColor != null && corpusColor;
+    }
+
+    // the single-process reference: every file deduped on its own, concatenated in file order, plain
+    // trainCodebook; this layout does not depend on the worker count, so neither does the codebook
+    private static TrainingResult trainShardsLocally(String[] files, int M, int N, long seed) throws IOException 
+    {
+        WeightedVectors corpus = loadFiles(files, M, 0, files.length);
+
+        return trainCodebook(corpus.vectors, corpus.weights, N, new Random(seed), null, null, 1, new TrainingBudget(0));
+    }
+
+    // trainCodebook with the vectors living in the workers, see the section comment
+    private static TrainingResult trainSharded(ShardCoordinator coord, int N, long seed) throws IOException 
+    {
+        Random rand = new Random(seed);
+        int W = coord.size();
+
+        if (coord.totalVectors() == 0) 
+        {
+            System.err.println("No vectors found, returning empty codebook.");
+            return new TrainingResult(Collections.<int[]>emptyList(), 0.0, 0, false, false);
+        }
+
+        // step 1 - kmeans++, same draws as kmeansPlusPlusInit
+        List<int[]> codebook = new ArrayList<>(N);
+        long firstPick = (long)(rand.nextDouble() * coord.totalWeight());
+        long prefixWeight = 0;
+
+        for (int k = 0; k < W; k++) 
+        {
+            if (prefixWeight + coord.shardWeight[k] > firstPick) 
+            {
+                codebook.add(coord.pickByWeight(k, firstPick - prefixWeight));
+                break;
+            }
+
+            prefixWeight += coord.shardWeight[k];
+        }
+
+        while (codebook.size() < N) 
+        {
+            double[] shardDist = coord.plusPlusStep(codebook.get(codebook.size() - 1));
+            double sumDist = 0;
+
+            for (double sd : shardDist) 
+            {
+                sumDist += sd;
+            }
+            if (sumDist == 0.0) 
+            {
+                int[] first = coord.firstVector();
+
+                while (codebook.size() < N) 
+                {
+                    codebook.add(first.clone());
+                }
+
+                break;
+            }
+
+            double r = rand.nextDouble() * sumDist;
+            double prefix = 0.0;
+
+            for (int k = 0; k < W; k++) 
+            {
+                if (prefix + shardDist[k] >= r) 
+                {
+                    codebook.add(coord.pickByDistance(k, prefix, r));
+                    break;
+                }
+
+                prefix += shardDist[k];
+            }
+        }
+
+        // first pass - workers assign their shard and build their running sums
+        int d = codebook.get(0).length;
+        long[][] sums = new long[N][d];
+        long[] counts = new long[N];
+        long totalWeight = coord.totalWeight();
+        double[] distortionMoved = new double[2];
+
+        coord.assign(codebook, sums, counts, distortionMoved);
+        double distortion = distortionMoved[0];
+
+        FarthestFinder farthest = (cluster, centroid) -> {
+            try 
+            {
+                return coord.farthest(cluster, centroid);
+            } 
+            catch (IOException e) 
+            {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        List<int[]> bestCodebook = copyCodebook(codebook);
+        double bestDistortion = distortion;
+        int bestIterations = 0;
+        int iterationsRun = 0;
+
+        try 
+        {
+            // step 2 - iterating
+            for (int iter = 0; iter < MAX_ITERS; iter++) 
+            {
+                double sqChange = updateCodewords(codebook, sums, counts, farthest);
+                iterationsRun++;
+
+                if (VERBOSE) 
+                {
+                    System.out.println("Iter=" + iter + " sqChange=" + sqChange);
+                }
+                if (sqChange < CONVERGENCE_EPS) 
+                {
+                    break;
+                }
+
+                coord.assign(codebook, sums, counts, distortionMoved);
+                distortion = distortionMoved[0];
+                long moved = (long) distortionMoved[1];
+
+                if (distortion < bestDistortion) 
+                {
+                    bestCodebook = copyCodebook(codebook);
+                    bestDistortion = distortion;
+                    bestIterations = iterationsRun;
+                }
+
+                double movedFraction = (double) moved / totalWeight;
+
+                if (movedFraction < MOVED_FRACTION_EPS) 
+                {
+                    if (moved > 0) 
+                    {
+                        updateCodewords(codebook, sums, counts, farthest);
+                    }
+
+                    break;
+                }
+            }
+        } 
+        catch (UncheckedIOException e) 
+        {
+            throw e.getCause();
+        }
+
+        double finalDistortion = coord.measure(codebook);
+
+        if (finalDistortion <= bestDistortion) 
+        {
+            bestCodebook = codebook;
+            bestDistortion = finalDistortion;
+            bestIterations = iterationsRun;
+        }
+
+        return new TrainingResult(bestCodebook, bestDistortion, bestIterations, false, false);
+    }
+
+    // spawns the worker JVMs on this box and talks to them over local sockets
+    // every broadcast writes to all workers before reading any reply, so the workers run concurrently
+    private static final class ShardCoordinator implements Closeable 
+    {
+        long[] shardWeight;
+        int[] shardSize;
+
+        private final ServerSocket server;
+        private final List<Process> processes = new ArrayList<>();
+        private final Socket[] sockets;
+        private final DataInputStream[] ins;
+        private final DataOutputStream[] outs;
+
+        ShardCoordinator(int workers) throws IOException 
+        {
+            server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress());
+            server.setSoTimeout(SHARD_CONNECT_TIMEOUT_MS);
+            sockets = new Socket[workers];
+            ins = new DataInputStream[workers];
+            outs = new DataOutputStream[workers];
+
+            try 
+            {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                String cp = System.getProperty("java.class.path");
+
+                for (int id = 0; id < workers; id++) 
+                {
+                    ProcessBuilder pb = new ProcessBuilder(java, "-cp", cp, "MyCompression", "shard-worker",
+                            String.valueOf(server.getLocalPort()), String.valueOf(id));
+                    pb.inheritIO();
+                    processes.add(pb.start());
+                }
+
+                // workers connect in any order and introduce themselves by id
+                for (int c = 0; c < workers; c++) 
+                {
+                    Socket s = server.accept();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    int id = in.readInt();
+                    sockets[id] = s;
+                    ins[id] = in;
+                    outs[id] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                }
+            } 
+            catch (IOException e) 
+            {
+                close();
+                throw e;
+            }
+        }
+
+        int size() 
+        {
+            return sockets.length;
+        }
+
+        long totalWeight() 
+        {
+            long total = 0;
+
+            for (long w : shardWeight) 
+            {
+                total += w;
+            }
+
+            return total;
+        }
+
+        long totalVectors() 
+        {
+            long total = 0;
+
+            for (int n : shardSize) 
+            {
+                total += n;
+            }
+
+            return total;
+        }
+
+        void load(String[] files, int M) throws IOException 
+        {
+            for (int k = 0; k < size(); k++) 
+            {
+                outs[k].writeInt(OP_LOAD);
+                outs[k].writeInt(M);
+                outs[k].writeInt(size());
+                outs[k].writeInt(files.length);
+
+                for (String f : files) 
+                {
+                    outs[k].writeUTF(new File(f).getAbsolutePath());
+                }
+
+                outs[k].flush();
+            }
+
+            shardWeight = new long[size()];
+            shardSize = new int[size()];
+
+            for (int k = 0; k < size(); k++) 
+            {
+                if (!ins[k].readBoolean()) 
+                {
+                    throw new IOException("worker " + k + ": " + ins[k].readUTF());
+                }
+
+                shardSize[k] = ins[k].readInt();
+                shardWeight[k] = ins[k].readLong();
+            }
+        }
+
+        int[] pickByWeight(int k, long offset) throws IOException 
+        {
+            outs[k].writeInt(OP_PICK_WEIGHT);
+            outs[k].writeLong(offset);
+            outs[k].flush();
+
+            return readVector(ins[k]);
+        }
+
+        // every worker folds the newest seed into its distances, returns each shard's weighted D^2 sum
+        double[] plusPlusStep(int[] newest) throws IOException 
+        {
+            for (int k = 0; k < size(); k++) 
+            {
+                outs[k].writeInt(OP_PP_STEP);
+                writeVector(outs[k], newest);
+                outs[k].flush();
+            }
+
+            double[] result = new double[size()];
+
+            for (int k = 0; k < size(); k++) 
+            {
+                result[k] = ins[k].readDouble();
+            }
+
+            return result;
+        }
+
+        int[] pickByDistance(int k, double prefix, double r) throws IOException 
+        {
+            outs[k].writeInt(OP_PICK_DIST);
+            outs[k].writeDouble(prefix);
+            outs[k].writeDouble(r);
+            outs[k].flush();
+
+            return readVector(ins[k]);
+        }
+
+        int[] firstVector() throws IOException 
+        {
+            for (int k = 0; k < size(); k++) 
+            {
+                if (shardSize[k] > 0) 
+                {
+                    outs[k].writeInt(OP_FIRST);
+                    outs[k].flush();
+
+                    return readVector(ins[k]);
+                }
+            }
+
+            throw new IOException("no vectors in any shard");
+        }
+
+        // broadcast the codebook, workers reassign, sums/counts come back reduced
+        // distortionMoved = {weighted distortion, weight of the vectors that changed cluster}
+        void assign(List<int[]> codebook, long[][] sums, long[] counts, double[] distortionMoved) throws IOException 
+        {
+            broadcastCodebook(OP_ASSIGN, codebook);
+
+            for (long[] s : sums) 
+            {
+                Arrays.fill(s, 0);
+            }
+
+            Arrays.fill(counts, 0);
+            double distortion = 0.0;
+            long moved = 0;
+
+            for (int k = 0; k < size(); k++) 
+            {
+                distortion += ins[k].readDouble();
+                moved += ins[k].readLong();
+
+                for (int c = 0; c < sums.length; c++) 
+                {
+                    counts[c] += ins[k].readLong();
+
+                    for (int j = 0; j < sums[c].length; j++) 
+                    {
+                        sums[c][j] += ins[k].readLong();
+                    }
+                }
+            }
+
+            distortionMoved[0] = distortion;
+            distortionMoved[1] = moved;
+        }
+
+        double measure(List<int[]> codebook) throws IOException 
+        {
+            broadcastCodebook(OP_MEASURE, codebook);
+            double distortion = 0.0;
+
+            for (int k = 0; k < size(); k++) 
+            {
+                distortion += ins[k].readDouble();
+            }
+
+            return distortion;
+        }
+
+        // first strictly farthest in shard order, same tie-break as farthestInCluster
+        int[] farthest(int cluster, int[] centroid) throws IOException 
+        {
+            for (int k = 0; k < size(); k++) 
+            {
+                outs[k].writeInt(OP_FARTHEST);
+                outs[k].writeInt(cluster);
+                writeVector(outs[k], centroid);
+                outs[k].flush();
+            }
+
+            double bestDist = -1.0;
+            int[] farthestVec = null;
+
+            for (int k = 0; k < size(); k++) 
+            {
+                if (!ins[k].readBoolean()) 
+                {
+                    continue;
+                }
+
+                int[] vec = readVector(ins[k]);
+                double dist = squaredDistance(vec, centroid);
+
+                if (dist > bestDist) 
+                {
+                    bestDist = dist;
+                    farthestVec = vec;
+                }
+            }
+
+            return farthestVec;
+        }
+
+        private void broadcastCodebook(int op, List<int[]> codebook) throws IOException 
+        {
+            for (int k = 0; k < size(); k++) 
+            {
+                outs[k].writeInt(op);
+                outs[k].writeInt(codebook.size());
+
+                for (int[] cw : codebook) 
+                {
+                    writeVector(outs[k], cw);
+                }
+
+                outs[k].flush();
+            }
+        }
+
+        @Override
+        public void close() 
+        {
+            for (int k = 0; k < sockets.length; k++) 
+            {
+                try 
+                {
+                    if (outs[k] != null) 
+                    {
+                        outs[k].writeInt(OP_SHUTDOWN);
+                        outs[k].flush();
+                    }
+                    if (sockets[k] != null) 
+                    {
+                        sockets[k].close();
+                    }
+                } 
+                catch (IOException e) 
+                {
+                    // worker already gone
+                }
+            }
+
+            try 
+            {
+                server.close();
+            } 
+            catch (IOException e) 
+            {
+                // nothing left to do
+            }
+
+            for (Process p : processes) 
+            {
+                try 
+                {
+                    if (!p.waitFor(5, TimeUnit.SECONDS)) 
+                    {
+                        p.destroyForcibly();
+                    }
+                } 
+                catch (InterruptedException e) 
+                {
+                    Thread.currentThread().interrupt();
+                    p.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    // java MyCompression shard-worker <port> <id>, started by ShardCoordinator
+    // owns one shard and answers coordinator requests until told to shut down
+    private static void runShardWorker(String[] args) 
+    {
+        int port = Integer.parseInt(args[1]);
+        int id = Integer.parseInt(args[2]);
+        TrainingBudget unbounded = new TrainingBudget(0);
+
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) 
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeInt(id);
+            out.flush();
+
+            List<int[]> vectors = Collections.emptyList();
+            int[] weights = new int[0];
+            double[] minDist = null;
+            double[] distSq = null;
+            int[] assignment = null;
+            int[] nearest = null;
+            AssignBounds bounds = null;
+            long[][] sums = null;
+            long[] counts = null;
+
+            while (true) 
+            {
+                int op = in.readInt();
+
+                if (op == OP_SHUTDOWN) 
+                {
+                    return;
+                } 
+                else if (op == OP_LOAD) 
+                {
+                    int M = in.readInt();
+                    int workers = in.readInt();
+                    String[] files = new String[in.readInt()];
+
+                    for (int j = 0; j < files.length; j++) 
+                    {
+                        files[j] = in.readUTF();
+                    }
+
+                    try 
+                    {
+                        WeightedVectors shard = loadShard(files, M, workers, id);
+                        vectors = shard.vectors;
+                        weights = shard.weights;
+                        minDist = new double[vectors.size()];
+                        Arrays.fill(minDist, Double.MAX_VALUE);
+                        distSq = new double[vectors.size()];
+                        nearest = new int[vectors.size()];
+                        bounds = new AssignBounds(vectors.size());
+
+                        long total = 0;
+
+                        for (int w : weights) 
+                        {
+                            total += w;
+                        }
+
+                        out.writeBoolean(true);
+                        out.writeInt(vectors.size());
+                        out.writeLong(total);
+                    } 
+                    catch (IOException e) 
+                    {
+                        out.writeBoolean(false);
+                        out.writeUTF(String.valueOf(e.getMessage()));
+                    }
+                } 
+                else if (op == OP_PICK_WEIGHT) 
+                {
+                    long offset = in.readLong();
+                    long seen = 0;
+                    int pick = vectors.size() - 1;
+
+                    for (int i = 0; i < vectors.size(); i++) 
+                    {
+                        seen += weights[i];
+
+                        if (seen > offset) 
+                        {
+                            pick = i;
+                            break;
+                        }
+                    }
+
+                    writeVector(out, vectors.get(pick));
+                } 
+                else if (op == OP_PP_STEP) 
+                {
+                    int[] newest = readVector(in);
+                    double sum = 0;
+
+                    for (int i = 0; i < vectors.size(); i++) 
+                    {
+                        double dist = squaredDistance(vectors.get(i), newest);
+
+                        if (dist < minDist[i]) 
+                        {
+                            minDist[i] = dist;
+                        }
+
+                        distSq[i] = minDist[i] * weights[i];
+                        sum += distSq[i];
+                    }
+
+                    out.writeDouble(sum);
+                } 
+                else if (op == OP_PICK_DIST) 
+                {
+                    // cumsum starts where the earlier shards left off, exactly like the single-process loop
+                    double cumsum = in.readDouble();
+                    double r = in.readDouble();
+                    int pick = vectors.size() - 1;
+
+                    for (int i = 0; i < vectors.size(); i++) 
+                    {
+                        cumsum += distSq[i];
+
+                        if (cumsum >= r) 
+                        {
+                            pick = i;
+                            break;
+                        }
+                    }
+
+                    writeVector(out, vectors.get(pick));
+                } 
+                else if (op == OP_FIRST) 
+                {
+                    writeVector(out, vectors.get(0));
+                } 
+                else if (op == OP_ASSIGN || op == OP_MEASURE) 
+                {
+                    List<int[]> codebook = readCodebook(in);
+
+                    if (op == OP_MEASURE) 
+                    {
+                        out.writeDouble(assignNearest(vectors, weights, codebook, nearest, bounds, null, 1, unbounded));
+                    } 
+                    else 
+                    {
+                        int N = codebook.size();
+                        int d = codebook.get(0).length;
+                        double distortion;
+                        long moved = 0;
+
+                        if (assignment == null) 
+                        {
+                            // first pass, sums from scratch
+                            assignment = new int[vectors.size()];
+                            distortion = assignNearest(vectors, weights, codebook, nearest, bounds, null, 1, unbounded);
+                            System.arraycopy(nearest, 0, assignment, 0, vectors.size());
+                            sums = new long[N][d];
+                            counts = new long[N];
+
+                            for (int i = 0; i < vectors.size(); i++) 
+                            {
+                                addToCluster(sums, counts, assignment[i], vectors.get(i), weights[i]);
+                            }
+                        } 
+                        else 
+                        {
+                            // later passes, only the moved vectors touch the sums
+                            distortion = assignNearest(vectors, weights, codebook, nearest, bounds, null, 1, unbounded);
+
+                            for (int i = 0; i < vectors.size(); i++) 
+                            {
+                                if (nearest[i] != assignment[i]) 
+                                {
+                                    removeFromCluster(sums, counts, assignment[i], vectors.get(i), weights[i]);
+                                    addToCluster(sums, counts, nearest[i], vectors.get(i), weights[i]);
+                                    assignment[i] = nearest[i];
+                                    moved += weights[i];
+                                }
+                            }
+                        }
+
+                        out.writeDouble(distortion);
+                        out.writeLong(moved);
+
+                        for (int c = 0; c < N; c++) 
+                        {
+                            out.writeLong(counts[c]);
+
+                            for (int j = 0; j < d; j++) 
+                            {
+                                out.writeLong(sums[c][j]);
+                            }
+                        }
+                    }
+                } 
+                else if (op == OP_FARTHEST) 
+                {
+                    int cluster = in.readInt();
+                    int[] centroid = readVector(in);
+                    int[] vec = (assignment == null) ? null
+                              : farthestInCluster(vectors, assignment, cluster, centroid);
+
+                    out.writeBoolean(vec != null);
+
+                    if (vec != null) 
+                    {
+                        writeVector(out, vec);
+                    }
+                } 
+                else 
+                {
+                    throw new IOException("unknown op " + op);
+                }
+
+                out.flush();
+            }
+        } 
+        catch (IOException e) 
+        {
+            System.err.println("shard-worker " + id + ": " + e.getMessage());
+        }
+    }
+
+    private static void writeVector(DataOutputStream out, int[] v) throws IOException 
+    {
+        out.writeInt(v.length);
+
+        for (int x : v) 
+        {
+            out.writeInt(x);
+        }
+    }
+
+    private static int[] readVector(DataInputStream in) throws IOException 
+    {
+        int[] v = new int[in.readInt()];
+
+        for (int k = 0; k < v.length; k++) 
+        {
+            v[k] = in.readInt();
+        }
+
+        return v;
+    }
+
+    private static List<int[]> readCodebook(DataInputStream in) throws IOException 
+    {
+        int N = in.readInt();
+        List<int[]> codebook = new ArrayList<>(N);
+
+        for (int i = 0; i < N; i++) 
+        {
+            codebook.add(readVector(in));
+        }
+
+        return codebook;
+    }
+
+    // BENCHMARK
+    // java MyCompression bench [--sizes 0.1,1,10,100] [--threads 1,2,4] [--M 4] [--N 64]
+    //                          [--patterns gradient,texture,noise] [--kinds gray,color] [--out results.csv]
+    // generates synthetic images, runs read -> vectorize -> train -> encode -> write on each and prints one CSV row per run
+    private static final long BENCH_SEED = 576L;
+    private static final String[] BENCH_PATTERNS = { "gradient", "texture", "noise" };
+    private static final int BENCH_VIEWPORT = 256;
+
+    private static void runBenchmark(String[] args) 
+    {
+        double[] sizes = { 0.1, 1, 10, 100 };
+        int[] threadCounts = defaultThreadCounts();
+        int M = 4;
+        int N = 64;
+        String[] patterns = BENCH_PATTERNS;
+        String[] kinds = { "gray", "color" };
+        String outPath = null;
+
+        for (int a = 1; a < args.length; a++) 
+        {
+            String opt = args[a];
+
+            if (a + 1 >= args.length) 
+            {
+                System.err.println("ERROR: missing value for " + opt);
+                return;
+            }
+
+            String val = args[++a];
+
+            if (opt.equals("--sizes")) 
+            {
+                String[] parts = val.split(",");
+                sizes = new double[parts.length];
 
-                for (int j = 0; j < clusters.size(); j++) 
+                for (int i = 0; i < parts.length; i++) 
                 {
-                    int sz = clusters.get(j).size();
-
-                    if (sz > largestSize) 
-                    {
-                        largestSize = sz;
-                        largestIdx = j;
-                    }
+                    sizes[i] = Double.parseDouble(parts[i]);
                 }
-                if (largestIdx < 0 || largestSize == 0) 
+            } 
+            else if (opt.equals("--threads")) 
+            {
+                String[] parts = val.split(",");
+                threadCounts = new int[parts.length];
+
+                for (int i = 0; i < parts.length; i++) 
                 {
-                    // fallbacking
-                    newCentroids[i] = codebook.get(0).clone();
-                    continue;
+                    threadCounts[i] = Integer.parseInt(parts[i]);
                 }
+            } 
+            else if (opt.equals("--M")) 
+            {
+                M = Integer.parseInt(val);
+            } 
+            else if (opt.equals("--N")) 
+            {
+                N = Integer.parseInt(val);
+            } 
+            else if (opt.equals("--patterns")) 
+            {
+                patterns = val.split(",");
+            } 
+            else if (opt.equals("--kinds")) 
+            {
+                kinds = val.split(",");
+            } 
+            else if (opt.equals("--out")) 
+            {
+                outPath = val;
+            } 
+            else 
+            {
+                System.err.println("ERROR: unknown bench option " + opt);
+                return;
+            }
+        }
 
-                int[] oldCentroid = codebook.get(largestIdx);
-                List<int[]> bigCluster = clusters.get(largestIdx);
-                double bestDist = -1.0;
-                int[] farthestVec = null;
+        int blockSize = (int)Math.round(Math.sqrt(M));
 
-                for (int[] v : bigCluster) 
+        if (M != 2 && blockSize * blockSize != M) 
+        {
+            System.err.println("ERROR: M must be 2 OR a perfect square (4,9,16,...)");
+            return;
+        }
+
+        PrintStream out = System.out;
+
+        try 
+        {
+            if (outPath != null) 
+            {
+                out = new PrintStream(new FileOutputStream(outPath));
+            }
+
+            out.println("pattern,kind,megapixels,width,height,M,N,threads,status,"
+                    + "read_ms,vectorize_ms,train_ms,encode_ms,write_ms,total_ms,"
+                    + "mpix_per_s,unique_vectors,train_iters,peak_heap_mb,peak_rss_mb,gc_ms,gc_count,"
+                    + "speedup,efficiency,viewport_ms");
+
+            // warm up the JIT on a small image so the first real row is not paying for it
+            benchImage(null, "texture", false, 0.1, M, N, new int[]{ threadCounts[threadCounts.length - 1] });
+
+            for (double mp : sizes) 
+            {
+                for (String pattern : patterns) 
                 {
-                    double dist = squaredDistance(v, oldCentroid);
-                    if (dist > bestDist) 
+                    for (String kind : kinds) 
                     {
-                        bestDist = dist;
-                        farthestVec = v;
+                        benchImage(out, pattern, kind.equals("color"), mp, M, N, threadCounts);
                     }
                 }
-                if (farthestVec == null) 
+            }
+        } 
+        catch (IOException e) 
+        {
+            e.printStackTrace();
+        } 
+        finally 
+        {
+            if (out != System.out) 
+            {
+                out.close();
+            }
+        }
+    }
+
+    // 1, 2, 4, ... up to the core count, plus the core count itself
+    private static int[] defaultThreadCounts() 
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+
+        for (int t = 1; t < cores; t *= 2) 
+        {
+            counts.add(t);
+        }
+
+        counts.add(cores);
+
+        int[] result = new int[counts.size()];
+
+        for (int i = 0; i < result.length; i++) 
+        {
+            result[i] = counts.get(i);
+        }
+
+        return result;
+    }
+
+    // one synthetic image, one row per thread count (out == null means warm-up, nothing printed)
+    private static void benchImage(PrintStream out, String pattern, boolean color, double mp,
+                                   int M, int N, int[] threadCounts) throws IOException 
+    {
+        // keeping the 352:288 aspect of the sample images
+        int w = (int)Math.round(Math.sqrt(mp * 1e6 * WIDTH / HEIGHT));
+        int h = Math.max(1, (int)Math.round(mp * 1e6 / w));
+        String kind = color ? "color" : "gray";
+        // one plane has to fit a single byte[] when it is read back
+        boolean tooLarge = (long) w * h > MAX_ARRAY_LENGTH;
+
+        File input = File.createTempFile("bench-" + pattern + "-", color ? ".rgb" : ".raw");
+        File encoded = File.createTempFile("bench-", ".vqt");
+        input.deleteOnExit();
+        encoded.deleteOnExit();
+
+        try 
+        {
+            if (out != null) 
+            {
+                System.err.println("bench: " + pattern + " " + kind + " " + w + "x" + h);
+            }
+
+            if (!tooLarge) 
+            {
+                generateSynthetic(input, w, h, color, pattern, BENCH_SEED);
+            }
+
+            double baseMs = -1;
+            int baseThreads = 1;
+
+            for (int threads : threadCounts) 
+            {
+                ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+
+                String status = tooLarge ? "too_large" : "ok";
+                long[] stageNs = new long[6];
+                int[] stats = new int[2];
+                BenchMemory mem = new BenchMemory();
+
+                try 
                 {
-                    newCentroids[i] = codebook.get(largestIdx).clone();
+                    if (!tooLarge) 
+                    {
+                        // a fresh file per run, rewriting the previous run's file in place is much slower
+                        // on some filesystems and would bias every thread count after the first
+                        encoded.delete();
+                        runPipeline(input, encoded, w, h, color, M, N, pool, threads, stageNs, stats);
+                    }
                 } 
-                else 
+                catch (OutOfMemoryError e) 
                 {
-                    for (int k = 0; k < d; k++) 
+                    status = "oom";
+                } 
+                finally 
+                {
+                    if (pool != null) 
                     {
-                        newCentroids[i][k] = (oldCentroid[k] + farthestVec[k]) / 2;
+                        pool.shutdownNow();
+                    }
+                }
+
+                mem.finish();
+
+                if (out == null) 
+                {
+                    continue;
+                }
+
+                double totalMs = 0;
+
+                // the viewport decode is reported on its own, not part of the pipeline total
+                for (int st = 0; st < 5; st++) 
+                {
+                    totalMs += stageNs[st] / 1e6;
+                }
+
+                double speedup = 0;
+                double efficiency = 0;
+
+                if (status.equals("ok")) 
+                {
+                    if (baseMs < 0) 
+                    {
+                        baseMs = totalMs;
+                        baseThreads = threads;
                     }
+
+                    speedup = baseMs / totalMs;
+                    efficiency = speedup * baseThreads / threads;
                 }
+
+                double realMp = (double) w * h / 1e6;
+
+                out.println(String.format(Locale.ROOT,
+                        "%s,%s,%.3f,%d,%d,%d,%d,%d,%s,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.3f,%d,%d,%.1f,%.1f,%d,%d,%.3f,%.3f,%.2f",
+                        pattern, kind, realMp, w, h, M, N, threads, status,
+                        stageNs[0] / 1e6, stageNs[1] / 1e6, stageNs[2] / 1e6, stageNs[3] / 1e6, stageNs[4] / 1e6, totalMs,
+                        status.equals("ok") ? realMp / (totalMs / 1000.0) : 0.0, stats[0], stats[1],
+                        mem.peakHeapMb, mem.peakRssMb, mem.gcMs, mem.gcCount, speedup, efficiency, stageNs[5] / 1e6));
+                out.flush();
             }
+        } 
+        finally 
+        {
+            input.delete();
+            encoded.delete();
         }
+    }
 
-        // measuring the changes
-        for (int i = 0; i < codebook.size(); i++) 
+    // the same steps main takes, timed; stageNs = read, vectorize, train, encode, write, viewport decode
+    // stats = distinct training vectors, iterations run
+    private static void runPipeline(File input, File encoded, int w, int h, boolean color, int M, int N,
+                                    ExecutorService pool, int threads, long[] stageNs, int[] stats) throws IOException 
+    {
+        int blockSize = (int)Math.round(Math.sqrt(M));
+        long t0 = System.nanoTime();
+
+        // read
+        int[][] gray = null;
+        int[][][] rgb = null;
+
+        if (color) 
         {
-            double dist = squaredDistance(codebook.get(i), newCentroids[i]);
-            totalChange += dist;
-            codebook.set(i, newCentroids[i]);
+            rgb = readColor(input.getPath(), w, h);
+        } 
+        else 
+        {
+            gray = readGrayscale(input.getPath(), w, h);
+        }
+        if (gray == null && rgb == null) 
+        {
+            throw new IOException("could not read " + input);
         }
 
-        return totalChange;
+        long t1 = System.nanoTime();
+
+        // vectorize, gray pairs go straight to the histogram like in main, without the full vector list
+        WeightedVectors unique;
+
+        if (M == 2) 
+        {
+            unique = color ? dedupeVectors(buildVectorsColor2Pixel(rgb, w, h)) : buildUniqueGray2Pixel(gray, w, h);
+        } 
+        else 
+        {
+            unique = dedupeVectors(color ? buildVectorsColorBlock(rgb, blockSize, w, h)
+                                         : buildVectorsGrayBlock(gray, blockSize, w, h));
+        }
+
+        long t2 = System.nanoTime();
+
+        // train
+        TrainingResult res = trainCodebook(unique.vectors, unique.weights, N, new Random(BENCH_SEED), null, pool, threads,
+                new TrainingBudget(0));
+        long t3 = System.nanoTime();
+
+        // encode
+        int[] indices = encodeGrid(gray, rgb, w, h, M, res.codebook, pool, threads);
+        long t4 = System.nanoTime();
+
+        // write
+        writeTiledContainer(encoded, w, h, color, M, res.codebook, indices, DEFAULT_TILE_PX);
+        long t5 = System.nanoTime();
+
+        // time to first pixel of a centered viewport, from a cold decoder
+        try (TiledDecoder dec = new TiledDecoder(encoded, DEFAULT_TILE_CACHE)) 
+        {
+            int vw = Math.min(BENCH_VIEWPORT, w);
+            int vh = Math.min(BENCH_VIEWPORT, h);
+
+            if (color) 
+            {
+                dec.decodeColor((w - vw) / 2, (h - vh) / 2, vw, vh);
+            } 
+            else 
+            {
+                dec.decodeGray((w - vw) / 2, (h - vh) / 2, vw, vh);
+            }
+        }
+
+        long t6 = System.nanoTime();
+
+        stageNs[0] = t1 - t0;
+        stageNs[1] = t2 - t1;
+        stageNs[2] = t3 - t2;
+        stageNs[3] = t4 - t3;
+        stageNs[4] = t5 - t4;
+        stageNs[5] = t6 - t5;
+        stats[0] = unique.vectors.size();
+        stats[1] = res.iterations;
     }
 
-    private static double squaredDistance(int[] a, int[] b) 
+    // planar .raw/.rgb in the same layout readGrayscale/readColor expect, streamed row by row
+    private static void generateSynthetic(File f, int w, int h, boolean color, String pattern, long seed) throws IOException 
     {
-        double sum = 0.0;
-        for (int i = 0; i < a.length; i++) 
+        Random rand = new Random(seed);
+        int channels = color ? 3 : 1;
+        byte[] row = new byte[w];
+
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(f), 1 << 20)) 
         {
-            double diff = a[i] - b[i];
-            sum += diff*diff;
+            for (int c = 0; c < channels; c++) 
+            {
+                for (int y = 0; y < h; y++) 
+                {
+                    for (int x = 0; x < w; x++) 
+                    {
+                        row[x] = (byte) syntheticPixel(pattern, x, y, c, w, h, rand);
+                    }
+
+                    os.write(row);
+                }
+            }
         }
+    }
 
-        return sum;
+    private static int syntheticPixel(String pattern, int x, int y, int c, int w, int h, Random rand) 
+    {
+        double v;
+
+        if (pattern.equals("gradient")) 
+        {
+            // smooth ramps, a different direction per channel
+            double fx = (double) x / Math.max(1, w - 1);
+            double fy = (double) y / Math.max(1, h - 1);
+            v = 255.0 * (c == 0 ? fx : (c == 1 ? fy : (fx + fy) / 2));
+        } 
+        else if (pattern.equals("texture")) 
+        {
+            // sine waves over a checkerboard, roughly what fabric/foliage looks like to a block coder
+            double wave = 60.0 * Math.sin(x * 0.15 + c) * Math.cos(y * 0.11 - c);
+            double check = (((x >> 4) + (y >> 4)) & 1) == 0 ? 40.0 : -40.0;
+            v = 128.0 + wave + check;
+        } 
+        else if (pattern.equals("noise")) 
+        {
+            v = rand.nextInt(256);
+        } 
+        else 
+        {
+            throw new IllegalArgumentException("unknown pattern " + pattern);
+        }
+
+        return Math.max(0, Math.min(255, (int) v));
     }
 
-    private static int findNearest(int[] vec, List<int[]> codebook) 
+    // heap / RSS peaks and GC work between construction and finish()
+    private static final class BenchMemory 
     {
-        int bestIndex = 0;
-        double bestDist = Double.MAX_VALUE;
+        private final long gcMsStart;
+        private final long gcCountStart;
+        double peakHeapMb;
+        double peakRssMb;
+        long gcMs;
+        long gcCount;
+
+        BenchMemory() 
+        {
+            System.gc();
 
-        for (int i = 0; i < codebook.size(); i++) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) 
+            {
+                if (pool.getType() == MemoryType.HEAP) 
+                {
+                    pool.resetPeakUsage();
+                }
+            }
 
-            double dist = squaredDistance(vec, codebook.get(i));
+            // Linux: writing 5 to clear_refs resets VmHWM, elsewhere the peak stays process-wide
+            try (FileWriter fw = new FileWriter("/proc/self/clear_refs")) 
+            {
+                fw.write("5");
+            } 
+            catch (IOException e) 
+            {
+                // not available, keep the process-wide peak
+            }
 
-            if (dist < bestDist) 
+            gcMsStart = totalGcMs();
+            gcCountStart = totalGcCount();
+        }
+
+        void finish() 
+        {
+            long peakHeap = 0;
+
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) 
             {
-                bestDist = dist;
-                bestIndex = i;
+                if (pool.getType() == MemoryType.HEAP) 
+                {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+
+            peakHeapMb = peakHeap / (1024.0 * 1024.0);
+            peakRssMb = readPeakRssKb() / 1024.0;
+            gcMs = totalGcMs() - gcMsStart;
+            gcCount = totalGcCount() - gcCountStart;
+        }
+
+        private static long totalGcMs() 
+        {
+            long total = 0;
+
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) 
+            {
+                total += Math.max(0, gc.getCollectionTime());
             }
+
+            return total;
+        }
+
+        private static long totalGcCount() 
+        {
+            long total = 0;
+
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) 
+            {
+                total += Math.max(0, gc.getCollectionCount());
+            }
+
+            return total;
+        }
+
+        // VmHWM from /proc/self/status, -1 when not on Linux
+        private static long readPeakRssKb() 
+        {
+            try (BufferedReader br = new BufferedReader(new FileReader("/proc/self/status"))) 
+            {
+                String line;
+
+                while ((line = br.readLine()) != null) 
+                {
+                    if (line.startsWith("VmHWM:")) 
+                    {
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } 
+            catch (IOException | NumberFormatException e) 
+            {
+                // fall through
+            }
+
+            return -1;
         }
-        return bestIndex;
     }
 
     // DISPLAYING THE IMAGES SIDE BY SIDE
@@ -816,6 +4220,42 @@ public class MyCompression {
         return out;
     }
 
+    private static BufferedImage makeImageGray(int[][] img, int w, int h) 
+    {
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < h; y++) 
+        {
+            for (int x = 0; x < w; x++) 
+            {
+                int val = img[y][x];
+                int rgb = 0xFF000000 | (val<<16)|(val<<8)|val;
+                out.setRGB(x, y, rgb);
+            }
+        }
+
+        return out;
+    }
+
+    private static BufferedImage makeImageColor(int[][][] img, int w, int h) 
+    {
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < h; y++) 
+        {
+            for (int x = 0; x < w; x++) 
+            {
+                int r = img[y][x][0];
+                int g = img[y][x][1];
+                int b = img[y][x][2];
+                int rgb = 0xFF000000 | (r<<16)|(g<<8)|b;
+                out.setRGB(x, y, rgb);
+            }
+        }
+
+        return out;
+    }
+
     private static void displayImage(BufferedImage img, String title) 
     {
         JFrame f = new JFrame(title);